@@ -0,0 +1,20 @@
+package org.example;
+
+// Server settings for benchmarks: nothing runs in the background, so only the measured code shows up in the numbers
+final class BenchmarkConfig {
+
+    private BenchmarkConfig() {
+    }
+
+    // No message log (and its fsync), presence notices go out at once, no session expiry, no idle reaper
+    static ServerConfig quiet() {
+        return ServerConfig.fromArgs(new String[]{
+                "--message-log-dir=",
+                "--presence-window-ms=0",
+                "--resume-window-s=0",
+                "--heartbeat-s=0",
+                "--read-timeout-s=0",
+                "--write-timeout-s=0",
+        });
+    }
+}
@@ -0,0 +1,64 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Message.parse and Message.toLine across payload sizes, and the type name lookup.
+ * Each benchmark only runs over the parameters of the state it takes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    @State(Scope.Thread)
+    public static class Payload {
+        @Param({"16", "256", "4096"})
+        public int payloadSize;
+
+        Message message;
+        String line;
+
+        @Setup
+        public void setup() {
+            message = Message.ofNow("c52344", Message.MessageType.TEXT, "x".repeat(payloadSize));
+            line = message.toLine();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class TypeName {
+        // Canonical name, an alias and a mixed-case alias
+        @Param({"TEXT", "message", "Whisper"})
+        public String typeName;
+    }
+
+    @Benchmark
+    public Message parse(Payload state) {
+        return Message.parse(state.line);
+    }
+
+    @Benchmark
+    public String toLine(Payload state) {
+        return state.message.toLine();
+    }
+
+    @Benchmark
+    public Message.MessageType fromStringSafe(TypeName state) {
+        return Message.MessageType.fromStringSafe(state.typeName);
+    }
+}
@@ -0,0 +1,68 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Room.broadcastToRoom fan-out to rooms of 10, 100 and 1000 handlers
+ * on stub connections, so only the encoding and the per-member hand-off is measured.
+ * The room is made by the server's RoomManager, so the numbering and the
+ * history ring are paid for as in a real room.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomBroadcastBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int recipients;
+
+    private Server server;
+    private Room room;
+    private ClientHandler sender;
+    private final List<StubConnection> connections = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        // Server logging goes through Log, only warnings would show up here
+        Log.setLevel(Log.Level.WARN);
+
+        server = new Server(BenchmarkConfig.quiet());
+        RoomManager rooms = server.getRoomManager();
+        sender = new ClientHandler(new StubConnection(), server);
+        rooms.joinRoom(sender, "bench", recipients + 1);
+        for (int i = 0; i < recipients; i++) {
+            StubConnection connection = new StubConnection();
+            connections.add(connection);
+            rooms.joinRoom(new ClientHandler(connection, server), "bench", 0);
+        }
+        room = rooms.findRoomByName("bench");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        room.broadcastToRoom("alice: hello everyone in the room", sender);
+    }
+}
@@ -0,0 +1,77 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RoomManager lookups and joins with thousands of rooms.
+ * The looked-up rooms are the last ones added, the worst case for a linear scan.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomManagerBenchmark {
+
+    @Param({"1000", "10000"})
+    public int roomCount;
+
+    private Server server;
+    private RoomManager roomManager;
+    private ClientHandler client;
+    private String lastRoom;
+    private String otherRoom;
+    private boolean toggle;
+
+    @Setup
+    public void setup() {
+        // Server logging goes through Log, only warnings would show up here
+        Log.setLevel(Log.Level.WARN);
+
+        server = new Server(BenchmarkConfig.quiet());
+        roomManager = server.getRoomManager();
+        for (int i = 0; i < roomCount; i++) {
+            roomManager.addRoom(new Room("room" + i, 5));
+        }
+        // Different case than the stored name, lookups are case-insensitive
+        lastRoom = "ROOM" + (roomCount - 1);
+        otherRoom = "ROOM" + (roomCount - 2);
+        client = new ClientHandler(new StubConnection(), server);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public Room findRoomByName() {
+        return roomManager.findRoomByName(lastRoom);
+    }
+
+    @Benchmark
+    public Room findMissingRoom() {
+        return roomManager.findRoomByName("no-such-room");
+    }
+
+    // Moves one client back and forth between two rooms, each call is a full leave and join
+    @Benchmark
+    public boolean joinRoom() {
+        toggle = !toggle;
+        return roomManager.joinRoom(client, toggle ? lastRoom : otherRoom);
+    }
+}
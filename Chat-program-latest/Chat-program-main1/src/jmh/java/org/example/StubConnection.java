@@ -0,0 +1,37 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+
+// Connection without a socket, frames are only counted, so a benchmark measures the chat code and not the network
+class StubConnection implements ClientConnection {
+    private static int nextPort = 20000;
+
+    private final int port = nextPort++;
+    private final OutboundQueue outbound = new ServerConfig().newOutboundQueue();
+    long frames;
+    long bytes;
+
+    @Override
+    public void writeFrame(ByteBuffer frame) {
+        frames++;
+        bytes += frame.remaining();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void abort() {
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+}
@@ -0,0 +1,141 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.util.List;
+
+/**
+ * Binary wire format, used instead of text lines once both sides agreed on it.
+ *
+ * frame = length:varint body          (length is the size of body in bytes)
+ * body  = type:u8 timestamp:i64 fieldCount:varint field...
+ * field = length:varint utf8-bytes
+ *
+ * The timestamp is epoch millis (big-endian), the Message timestamp read as UTC.
+ * Field 0 is the clientId, the rest are the payload fields, so a payload
+ * may contain '|' and '\n' without any escaping.
+ * Type 0 is a server notice (one of the lines the text protocol would print),
+ * sent with an empty clientId.
+ *
+ * Handshake: a client that wants binary sends HANDSHAKE as its first line.
+ * The server answers HANDSHAKE_OK as a text line and both directions use
+ * frames from then on. A client that sends anything else stays on text lines.
+ */
+public final class BinaryCodec {
+    public static final String HANDSHAKE = "#PROTOCOL BINARY/1";
+    public static final String HANDSHAKE_OK = HANDSHAKE + " OK";
+
+    public static final int NOTICE = 0;
+    // Wire codes for MessageType, index is the code. Fixed, so reordering the enum does not change the protocol.
+    private static final Message.MessageType[] TYPES = {
+            null,
+            Message.MessageType.TEXT,
+            Message.MessageType.EMOJI,
+            Message.MessageType.FILE_TRANSFER,
+            Message.MessageType.LOGIN,
+            Message.MessageType.JOIN_ROOM,
+            Message.MessageType.PRIVATE,
+            Message.MessageType.PING,
+            Message.MessageType.PONG,
+    };
+
+    private BinaryCodec() {
+    }
+
+    public static int typeCode(Message.MessageType type) {
+        for (int code = 1; code < TYPES.length; code++) {
+            if (TYPES[code] == type) {
+                return code;
+            }
+        }
+        throw new IllegalArgumentException("No wire code for " + type);
+    }
+
+    // null for NOTICE and for codes that are not known
+    public static Message.MessageType typeOf(int code) {
+        return code > 0 && code < TYPES.length ? TYPES[code] : null;
+    }
+
+    public static boolean isKnownType(int code) {
+        return code == NOTICE || typeOf(code) != null;
+    }
+
+    public static ByteBuffer encode(Message message) {
+        List<String> payload = message.getPayloadParts();
+        byte[][] fields = new byte[payload.size() + 1][];
+        fields[0] = message.getClientId().getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < payload.size(); i++) {
+            fields[i + 1] = payload.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        long millis = message.getTimestamp().toInstant(ZoneOffset.UTC).toEpochMilli();
+        ByteBuffer buf = ByteBuffer.allocate(frameSize(fields));
+        putFrame(buf, typeCode(message.getType()), millis, fields);
+        return buf.flip();
+    }
+
+    public static ByteBuffer encodeNotice(String text) {
+        byte[][] fields = {new byte[0], text.getBytes(StandardCharsets.UTF_8)};
+        ByteBuffer buf = ByteBuffer.allocate(frameSize(fields));
+        putFrame(buf, NOTICE, System.currentTimeMillis(), fields);
+        return buf.flip();
+    }
+
+    // Several notices back to back in one buffer, so they go out in a single write
+    public static ByteBuffer encodeNotices(List<String> lines) {
+        byte[][][] frames = new byte[lines.size()][][];
+        int size = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            frames[i] = new byte[][]{new byte[0], lines.get(i).getBytes(StandardCharsets.UTF_8)};
+            size += frameSize(frames[i]);
+        }
+        long now = System.currentTimeMillis();
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (byte[][] fields : frames) {
+            putFrame(buf, NOTICE, now, fields);
+        }
+        return buf.flip();
+    }
+
+    private static int bodySize(byte[][] fields) {
+        int size = 1 + Long.BYTES + varintSize(fields.length);
+        for (byte[] field : fields) {
+            size += varintSize(field.length) + field.length;
+        }
+        return size;
+    }
+
+    private static int frameSize(byte[][] fields) {
+        int body = bodySize(fields);
+        return varintSize(body) + body;
+    }
+
+    private static void putFrame(ByteBuffer buf, int type, long millis, byte[][] fields) {
+        putVarint(buf, bodySize(fields));
+        buf.put((byte) type);
+        buf.putLong(millis);
+        putVarint(buf, fields.length);
+        for (byte[] field : fields) {
+            putVarint(buf, field.length);
+            buf.put(field);
+        }
+    }
+
+    // Unsigned LEB128, 7 bits per byte, lowest bits first
+    static void putVarint(ByteBuffer buf, int value) {
+        while ((value & ~0x7f) != 0) {
+            buf.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,86 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits an incoming byte stream into BinaryCodec frames as bytes arrive.
+ * The counterpart of LineDecoder: the varint length prefix and the body
+ * may both span several reads, the body is handed on without its prefix.
+ */
+public class BinaryFrameDecoder {
+
+    public interface FrameHandler {
+        // buf is only valid during the call
+        void onFrame(byte[] buf, int offset, int length) throws IOException;
+    }
+
+    private final int maxFrameLength;
+    private byte[] body = new byte[256];
+    // -1 while the length prefix is still being read
+    private int frameLength = -1;
+    private int filled;
+    private int lengthValue;
+    private int lengthShift;
+
+    public BinaryFrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public void decode(ByteBuffer in, FrameHandler frames) throws IOException {
+        while (decodeFrame(in, frames)) {
+            // next frame
+        }
+    }
+
+    // Hands on at most one frame, like LineDecoder.decodeLine. Returns false once the buffer is used up.
+    public boolean decodeFrame(ByteBuffer in, FrameHandler frames) throws IOException {
+        while (in.hasRemaining()) {
+            if (frameLength < 0) {
+                readLength(in.get());
+                continue;
+            }
+            int chunk = Math.min(in.remaining(), frameLength - filled);
+            if (filled == 0 && chunk == frameLength && in.hasArray()) {
+                // Whole frame is in the read buffer, parse it in place
+                int start = in.arrayOffset() + in.position();
+                in.position(in.position() + chunk);
+                frameLength = -1;
+                frames.onFrame(in.array(), start, chunk);
+                return true;
+            }
+            in.get(body, filled, chunk);
+            filled += chunk;
+            if (filled == frameLength) {
+                int length = frameLength;
+                frameLength = -1;
+                frames.onFrame(body, 0, length);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void readLength(byte b) throws IOException {
+        lengthValue |= (b & 0x7f) << lengthShift;
+        if ((b & 0x80) != 0) {
+            lengthShift += 7;
+            if (lengthShift > 28) {
+                throw new IOException("Frame length prefix too long");
+            }
+            return;
+        }
+        int length = lengthValue;
+        lengthValue = 0;
+        lengthShift = 0;
+        if (length < 0 || length > maxFrameLength) {
+            throw new IOException("Frame longer than " + maxFrameLength + " bytes");
+        }
+        if (length > body.length) {
+            body = Arrays.copyOf(body, Math.min(Math.max(body.length * 2, length), maxFrameLength));
+        }
+        frameLength = length;
+        filled = 0;
+    }
+}
@@ -0,0 +1,173 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * Reads one BinaryCodec frame body in place, the binary counterpart of MessageView.
+ * Only the field offsets are recorded, Strings are created when a field is asked for.
+ * One view is reused for every frame of a connection.
+ */
+public final class BinaryFrameView implements InboundMessage {
+    private static final int HEADER_LENGTH = 1 + Long.BYTES;
+
+    private byte[] buf;
+    private int end;
+    private int pos;
+    private int typeCode;
+    private long epochMillis;
+    private int[] fieldStarts = new int[8];
+    private int[] fieldEnds = new int[8];
+    private int fieldCount;
+
+    public BinaryFrameView parse(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.end = offset + length;
+        if (length < HEADER_LENGTH + 1)
+            throw new IllegalArgumentException("Malformed frame (" + length + " bytes)");
+
+        typeCode = buf[offset] & 0xff;
+        if (!BinaryCodec.isKnownType(typeCode))
+            throw new IllegalArgumentException("Unknown message type code: " + typeCode);
+
+        epochMillis = 0;
+        for (int i = offset + 1; i < offset + HEADER_LENGTH; i++) {
+            epochMillis = (epochMillis << 8) | (buf[i] & 0xff);
+        }
+
+        pos = offset + HEADER_LENGTH;
+        int count = readVarint();
+        if (count < 1)
+            throw new IllegalArgumentException("Missing clientId");
+        // Every field takes at least its length byte, so a bigger count is a lie and must not size the arrays
+        if (count > end - pos)
+            throw new IllegalArgumentException("More fields than the frame has room for: " + count);
+        if (count > fieldStarts.length) {
+            int size = Math.max(fieldStarts.length * 2, count);
+            fieldStarts = Arrays.copyOf(fieldStarts, size);
+            fieldEnds = Arrays.copyOf(fieldEnds, size);
+        }
+        for (int i = 0; i < count; i++) {
+            int fieldLength = readVarint();
+            if (fieldLength > end - pos)
+                throw new IllegalArgumentException("Field runs past the end of the frame");
+            fieldStarts[i] = pos;
+            fieldEnds[i] = pos + fieldLength;
+            pos += fieldLength;
+        }
+        if (pos != end)
+            throw new IllegalArgumentException("Trailing bytes after the last field");
+        fieldCount = count;
+        return this;
+    }
+
+    // A server notice rather than a chat message
+    public boolean isNotice() {
+        return typeCode == BinaryCodec.NOTICE;
+    }
+
+    // True if a field holds a CR or LF, which a text line never can
+    public boolean containsLineBreak() {
+        for (int field = 0; field < fieldCount; field++) {
+            for (int i = fieldStarts[field]; i < fieldEnds[field]; i++) {
+                if (buf[i] == '\n' || buf[i] == '\r') {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Message.MessageType getType() {
+        return BinaryCodec.typeOf(typeCode);
+    }
+
+    @Override
+    public String getClientId() {
+        return string(0);
+    }
+
+    public long getEpochMillis() {
+        return epochMillis;
+    }
+
+    @Override
+    public LocalDateTime getTimestamp() {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(epochMillis, 1000),
+                Math.floorMod(epochMillis, 1000) * 1_000_000, ZoneOffset.UTC);
+    }
+
+    @Override
+    public int payloadCount() {
+        return fieldCount - 1;
+    }
+
+    @Override
+    public String payload(int index) {
+        return string(index + 1);
+    }
+
+    @Override
+    public String firstPayload() {
+        return payloadCount() == 0 ? "" : payload(0);
+    }
+
+    @Override
+    public boolean payloadStartsWith(int index, char c) {
+        if (index >= payloadCount()) {
+            return false;
+        }
+        int from = fieldStarts[index + 1];
+        int to = fieldEnds[index + 1];
+        while (from < to && (buf[from] & 0xff) <= ' ') {
+            from++;
+        }
+        return from < to && buf[from] == c;
+    }
+
+    @Override
+    public String rawPayload() {
+        if (payloadCount() <= 1) {
+            return firstPayload();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < payloadCount(); i++) {
+            if (i > 0) {
+                sb.append('|');
+            }
+            sb.append(payload(i));
+        }
+        return sb.toString();
+    }
+
+    public Message toMessage() {
+        String[] payload = new String[payloadCount()];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = payload(i);
+        }
+        return new Message(getClientId(), getType(), getTimestamp(), Arrays.asList(payload));
+    }
+
+    private int readVarint() {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (pos >= end)
+                throw new IllegalArgumentException("Frame ends inside a length");
+            byte b = buf[pos++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0)
+                    throw new IllegalArgumentException("Negative length in frame");
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Length prefix too long");
+    }
+
+    private String string(int field) {
+        return new String(buf, fieldStarts[field], fieldEnds[field] - fieldStarts[field], StandardCharsets.UTF_8);
+    }
+}
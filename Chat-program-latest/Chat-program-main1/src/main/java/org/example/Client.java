@@ -1,44 +1,69 @@
 package org.example;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Console client. Speaks the text line protocol by default,
+ * start it with --binary to ask the server for binary frames instead.
+ * Files go over their own connection to the server's file port, see FileRelay,
+ * and are saved in the downloads folder.
+ *
+ * The client asks for a resumable session. If the connection drops it
+ * reconnects and resumes from the last room message it saw, so it keeps
+ * its name and room and only gets the messages it missed.
+ */
 public class Client {
+    private static final int MAX_LENGTH = 64 * 1024;
+    private static final Path DOWNLOADS = Path.of("downloads");
+    // Files offered with /send or /share, by name, until the server answers with an upload token
+    private static final Map<String, Path> pendingUploads = new ConcurrentHashMap<>();
+    // Files shared in our rooms, by name, fetched with /get
+    private static final Map<String, SharedFile> sharedFiles = new ConcurrentHashMap<>();
+
+    private record SharedFile(int port, String hash, long size) {
+    }
+
+    // Always the current connection, a resume swaps the stream underneath
+    private static final ServerOutput output = new ServerOutput();
+    private static volatile String sessionToken;
+    private static volatile long resumeWindowSeconds;
+    // Highest room message number seen in the current room, a resume continues from it
+    private static volatile long lastSeq;
+    private static volatile boolean quitting;
+
     public static void main(String[] args) {
         String hostname = "localhost";
         int port = 5001;
+        boolean binary = Arrays.asList(args).contains("--binary");
 
         try {
             Socket socket = new Socket(hostname, port);
             Scanner scanner = new Scanner(System.in);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-
+            OutputStream out = output;
+            WireFormat format = binary ? WireFormat.BINARY : WireFormat.TEXT;
             String clientId = "c" + socket.getLocalPort();
-            System.out.println("Connected to " + hostname + ":" + port);
+            start(socket, hostname, port, binary, clientId, ClientHandler.SESSION_REQUEST);
+            System.out.println("Connected to " + hostname + ":" + port + (binary ? " (binary protocol)" : ""));
             System.out.println("Your client ID: " + clientId);
             System.out.println("Commands:");
             System.out.println("  /login <username> [password] - Login with protocol");
             System.out.println("  /join <room> - Join room with protocol");
             System.out.println("  /pm <user> <message> - Private message with protocol");
             System.out.println("  :emoji: - Send emoji");
-            System.out.println("  filename.ext - Send as file transfer");
+            System.out.println("  /send <user> <file> - Send a file, chat keeps working meanwhile");
+            System.out.println("  /share <file> - Share a file in your room, /get <file> downloads one");
             System.out.println("  Or use traditional /commands");
 
-            Thread receiveThread = new Thread(() -> {
-                try {
-                    String message;
-                    while ((message = reader.readLine()) != null) {
-                        System.out.println(message);
-                    }
-                } catch (SocketException e) {
-                    System.err.println("Connection lost");
-                } catch (IOException e) {
-                    System.err.println("I/O error: " + e.getMessage());
-                }
-            });
-            receiveThread.start();
 
 
 
@@ -46,6 +71,12 @@ public class Client {
 
             while ((input = scanner.nextLine()) != null) {
 
+                if (input.equals("/quit") || input.equals("/exit")) {
+
+                    quitting = true;
+
+                }
+
                 if (input.startsWith("/login ")) {
 
                     // /login bob hunter2
@@ -56,9 +87,7 @@ public class Client {
 
                     String pass = toks.length > 2 ? toks[2] : "";
 
-                    String line = Message.ofNow(clientId, Message.MessageType.LOGIN, user, pass).toLine();
-
-                    writer.println(line);
+                    send(out, format, Message.ofNow(clientId, Message.MessageType.LOGIN, user, pass));
 
 
 
@@ -66,9 +95,69 @@ public class Client {
 
                     String room = input.substring(6).trim();
 
-                    String line = Message.ofNow(clientId, Message.MessageType.JOIN_ROOM, room).toLine();
+                    send(out, format, Message.ofNow(clientId, Message.MessageType.JOIN_ROOM, room));
+
+
+
+                } else if (input.startsWith("/pm ")) {
+
+                    // /pm bob hej med dig
+
+                    String[] toks = input.split("\\s+", 3);
+
+                    if (toks.length < 3) {
+
+                        System.out.println("Usage: /pm <user> <message>");
+
+                        continue;
+
+                    }
+
+                    send(out, format, Message.ofNow(clientId, Message.MessageType.PRIVATE, toks[1], toks[2]));
+
+
+
+                } else if (input.startsWith("/send ") || input.startsWith("/share ")) {
+
+                    // /send bob billede.png, eller /share billede.png til hele rummet
+
+                    boolean share = input.startsWith("/share ");
+
+                    String[] toks = input.split("\\s+", share ? 2 : 3);
+
+                    Path file = toks.length == (share ? 2 : 3) ? Path.of(toks[toks.length - 1]) : null;
 
-                    writer.println(line);
+                    if (file == null || !Files.isRegularFile(file)) {
+
+                        System.out.println(share ? "Usage: /share <file>, and the file must exist" : "Usage: /send <user> <file>, and the file must exist");
+
+                        continue;
+
+                    }
+
+                    String name = file.getFileName().toString().replace(' ', '_');
+
+                    pendingUploads.put(name, file);
+
+                    send(out, format, Message.ofNow(clientId, Message.MessageType.FILE_TRANSFER, share ? "" : toks[1], name, String.valueOf(Files.size(file))));
+
+
+
+                } else if (input.startsWith("/get ")) {
+
+                    String name = input.substring(5).trim();
+
+                    SharedFile shared = sharedFiles.get(name);
+
+                    if (shared == null) {
+
+                        System.out.println("No file called '" + name + "' has been shared in your room");
+
+                        continue;
+
+                    }
+
+                    Thread.ofVirtual().start(() -> download(hostname, shared.port(), FileRelay.FETCH, shared.hash(), name, shared.size()));
 
 
 
@@ -76,12 +165,12 @@ public class Client {
 
                     // almindelig tekst
 
-                    String line = Message.ofNow(clientId, Message.MessageType.TEXT, input).toLine();
-
-                    writer.println(line);
+                    send(out, format, Message.ofNow(clientId, Message.MessageType.TEXT, input));
 
                 }
 
+                out.flush();
+
             }
 
         } catch (UnknownHostException e) {
@@ -93,14 +182,295 @@ public class Client {
         }
     }
 
-    private static boolean isFileMessage(String text) {
-        String[] fileExtensions = {".pdf", ".jpg", ".png", ".gif", ".txt", ".doc", ".docx", ".zip", ".mp3", ".mp4"};
-        String lowerText = text.toLowerCase();
-        for (String ext : fileExtensions) {
-            if (lowerText.endsWith(ext)) {
-                return true;
+    /**
+     * Starts talking on a new connection: the binary handshake if asked for,
+     * then the line that goes before the username (a session request or a
+     * resume), and a Receiver for what the server sends back.
+     */
+    private static void start(Socket socket, String host, int port, boolean binary, String clientId, String firstLine) throws IOException {
+        // No autoflush, each command is flushed once when it is complete
+        OutputStream stream = new BufferedOutputStream(socket.getOutputStream());
+        WireFormat format = WireFormat.TEXT;
+        if (binary) {
+            // Handshake goes first as a text line, the frames can follow right behind it
+            stream.write((BinaryCodec.HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8));
+            format = WireFormat.BINARY;
+        }
+        // Before the login the server takes the whole line, or the first payload of a frame. We answer heartbeats, see pong().
+        for (String line : new String[]{ClientHandler.HEARTBEAT_REQUEST, firstLine}) {
+            if (format == WireFormat.BINARY) {
+                send(stream, format, Message.ofNow(clientId, Message.MessageType.TEXT, line));
+            } else {
+                stream.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        stream.flush();
+        output.connectTo(stream);
+        new Thread(new Receiver(host, port, clientId, socket.getInputStream(), binary)).start();
+    }
+
+    // Tries once a second for as long as the server keeps the session
+    private static void resume(String host, int port, String clientId, boolean binary) {
+        System.out.println("Connection lost, reconnecting...");
+        long deadline = System.currentTimeMillis() + resumeWindowSeconds * 1000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(1000);
+                Socket socket = new Socket(host, port);
+                start(socket, host, port, binary, clientId, ClientHandler.RESUME_REQUEST + sessionToken + " " + lastSeq);
+                return;
+            } catch (IOException e) {
+                // Not back yet
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        sessionToken = null;
+        System.err.println("Could not reconnect before the session ran out");
+    }
+
+    private static void send(OutputStream out, WireFormat format, Message message) throws IOException {
+        ByteBuffer frame = format.encode(message);
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    // Hands writes to the current connection. While a resume is under way a failed write is reported, not fatal.
+    private static final class ServerOutput extends OutputStream {
+        private volatile OutputStream current;
+
+        void connectTo(OutputStream stream) {
+            current = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        // The Receiver answers heartbeats while the main thread sends, one message is one write
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            try {
+                current.write(b, off, len);
+            } catch (IOException e) {
+                if (sessionToken == null) {
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            try {
+                current.flush();
+            } catch (IOException e) {
+                if (sessionToken == null) {
+                    throw e;
+                }
+                System.out.println("Not sent, the connection is being restored");
+            }
+        }
+    }
+
+    // Prints everything the server sends, switching to binary frames once the server has accepted the handshake
+    private static class Receiver implements Runnable {
+        private final String host;
+        private final int port;
+        private final String clientId;
+        private final InputStream in;
+        private final boolean expectBinary;
+        private final LineDecoder lines = new LineDecoder(MAX_LENGTH);
+        private final BinaryFrameDecoder frames = new BinaryFrameDecoder(MAX_LENGTH);
+        private final BinaryFrameView view = new BinaryFrameView();
+        private boolean binary;
+
+        Receiver(String host, int port, String clientId, InputStream in, boolean expectBinary) {
+            this.host = host;
+            this.port = port;
+            this.clientId = clientId;
+            this.in = in;
+            this.expectBinary = expectBinary;
+        }
+
+        @Override
+        public void run() {
+            byte[] chunk = new byte[8192];
+            try {
+                int n;
+                while ((n = in.read(chunk)) != -1) {
+                    ByteBuffer buf = ByteBuffer.wrap(chunk, 0, n);
+                    while (buf.hasRemaining()) {
+                        if (binary) {
+                            frames.decode(buf, this::printFrame);
+                        } else if (!lines.decodeLine(buf, this::printLine)) {
+                            break;
+                        }
+                    }
+                }
+            } catch (SocketException e) {
+                if (sessionToken == null) {
+                    System.err.println("Connection lost");
+                }
+            } catch (IOException e) {
+                System.err.println("I/O error: " + e.getMessage());
+            }
+            if (sessionToken != null && !quitting) {
+                resume(host, port, clientId, expectBinary);
+            }
+        }
+
+        private void printLine(byte[] buf, int offset, int length) {
+            String line = new String(buf, offset, length, StandardCharsets.UTF_8);
+            if (expectBinary && line.equals(BinaryCodec.HANDSHAKE_OK)) {
+                binary = true;
+                return;
+            }
+            print(line);
+        }
+
+        private void printFrame(byte[] buf, int offset, int length) {
+            BinaryFrameView msg = view.parse(buf, offset, length);
+            if (msg.isNotice()) {
+                print(msg.firstPayload());
+            } else {
+                System.out.println(msg.getClientId() + ": " + msg.rawPayload());
+            }
+        }
+
+        // Heartbeat from the server, answered without showing it
+        private void pong() {
+            try {
+                synchronized (output) {
+                    send(output, binary ? WireFormat.BINARY : WireFormat.TEXT, Message.ofNow(clientId, Message.MessageType.PONG));
+                    output.flush();
+                }
+            } catch (IOException e) {
+                // The read loop notices a dead connection
             }
         }
+
+        // "#FILE UPLOAD|DOWNLOAD <port> <token> <size> <name>" starts a transfer, everything else is shown.
+        // Only the server can start a line with '#': usernames cannot, and in binary mode only notices get here.
+        private void print(String line) {
+            if (line.startsWith(SharedFrame.SEQ_PREFIX)) {
+                // "#SEQ <n> <line>", a numbered room message
+                int space = line.indexOf(' ', SharedFrame.SEQ_PREFIX.length());
+                if (space > 0) {
+                    try {
+                        lastSeq = Math.max(lastSeq, Long.parseLong(line.substring(SharedFrame.SEQ_PREFIX.length(), space)));
+                        line = line.substring(space + 1);
+                    } catch (NumberFormatException e) {
+                        // Not a number, show the line as it came
+                    }
+                }
+            } else if (session(line)) {
+                return;
+            } else if (line.equals(ClientHandler.HEARTBEAT_PING)) {
+                pong();
+                return;
+            }
+            if (!line.startsWith("#FILE ")) {
+                System.out.println(line);
+                return;
+            }
+            String[] parts = line.split(" ", 6);
+            if (parts.length < 6) {
+                System.out.println(line);
+                return;
+            }
+            int port;
+            long size;
+            try {
+                port = Integer.parseInt(parts[2]);
+                size = Long.parseLong(parts[4]);
+            } catch (NumberFormatException e) {
+                System.out.println(line);
+                return;
+            }
+            if (port < 1 || port > 65535 || size < 0) {
+                System.out.println(line);
+                return;
+            }
+            if (parts[1].equals(FileRelay.UPLOAD)) {
+                Path file = pendingUploads.remove(parts[5]);
+                if (file != null) {
+                    Thread.ofVirtual().start(() -> upload(host, port, parts[3], file, size));
+                }
+            } else if (parts[1].equals(FileRelay.DOWNLOAD)) {
+                Thread.ofVirtual().start(() -> download(host, port, FileRelay.DOWNLOAD, parts[3], parts[5], size));
+            } else if (parts[1].equals("SHARED")) {
+                sharedFiles.put(parts[5], new SharedFile(port, parts[3], size));
+            }
+        }
+    }
+
+    // Session lines from the server, true if the line was one of them
+    private static boolean session(String line) {
+        if (line.startsWith(ClientHandler.SESSION_REPLY)) {
+            // "#SESSION <token> <seconds>"
+            String[] parts = line.split(" ");
+            if (parts.length < 3) {
+                return false;
+            }
+            try {
+                resumeWindowSeconds = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            sessionToken = parts[1];
+            return true;
+        }
+        if (line.startsWith(ClientHandler.RESUMED)) {
+            System.out.println("Reconnected, still in " + line.substring(ClientHandler.RESUMED.length()));
+            return true;
+        }
+        if (line.equals(ClientHandler.RESUME_FAILED)) {
+            sessionToken = null;
+            System.out.println("The session had run out, please log in again");
+            return true;
+        }
+        if (line.startsWith("You joined room: ") || line.startsWith("You automatically joined")) {
+            // Numbers are per room, the new room's history starts the count again
+            lastSeq = 0;
+        }
         return false;
     }
+
+    // transferTo lets the OS send straight from the file, the bytes never pass through the client's heap
+    private static void upload(String host, int port, String token, Path file, long size) {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+             FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.write(ByteBuffer.wrap((FileRelay.UPLOAD + " " + token + "\n").getBytes(StandardCharsets.US_ASCII)));
+            long position = 0;
+            while (position < size) {
+                position += source.transferTo(position, size - position, channel);
+            }
+            System.out.println("Uploaded " + file.getFileName() + " (" + size + " bytes)");
+        } catch (IOException e) {
+            System.err.println("Upload of " + file.getFileName() + " failed: " + e.getMessage());
+        }
+    }
+
+    // DOWNLOAD <token> for a file sent to us, FETCH <hash> for one stored for the room
+    private static void download(String host, int port, String verb, String token, String name, long size) {
+        Path target = DOWNLOADS.resolve(Path.of(name).getFileName());
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+            Files.createDirectories(DOWNLOADS);
+            channel.write(ByteBuffer.wrap((verb + " " + token + "\n").getBytes(StandardCharsets.US_ASCII)));
+            try (FileChannel sink = FileChannel.open(target, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long position = 0;
+                while (position < size) {
+                    long n = sink.transferFrom(channel, position, size - position);
+                    if (n == 0) {
+                        throw new EOFException("connection closed after " + position + " of " + size + " bytes");
+                    }
+                    position += n;
+                }
+            }
+            System.out.println("Received " + name + " (" + size + " bytes) -> " + target);
+        } catch (IOException e) {
+            System.err.println("Download of " + name + " failed: " + e.getMessage());
+        }
+    }
 }
\ No newline at end of file
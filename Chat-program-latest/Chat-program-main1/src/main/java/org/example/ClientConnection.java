@@ -0,0 +1,26 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Transport for one connected client.
+ * ClientHandler only writes through this, so the same chat logic runs
+ * on a blocking socket thread and on the NIO event loop.
+ * The transport only moves bytes: inbound bytes go to ClientHandler.onBytes(),
+ * which also does the encoding, since the wire format is agreed per client.
+ * writeFrame() only queues the frame, each transport drains its queue on its own writer.
+ */
+public interface ClientConnection {
+
+    // Queues an already encoded frame as is, e.g. a view of a SharedFrame
+    void writeFrame(ByteBuffer frame);
+
+    void close();
+
+    // Closes right away and drops whatever is still queued, for a client that is gone
+    void abort();
+
+    int getPort();
+
+    OutboundQueue getOutboundQueue();
+}
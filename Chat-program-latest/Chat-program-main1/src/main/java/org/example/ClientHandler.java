@@ -1,36 +1,116 @@
 package org.example;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 public class ClientHandler implements Runnable {
-    private Socket socket;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_LISTED_ROOMS = 50;
+    // A mass disconnect would otherwise flood the log
+    private static final Log.Limit DISCONNECT_LOG = Log.limit(Log.Level.INFO, 50);
+    private static final Log.Limit CONNECTION_ERROR_LOG = Log.limit(Log.Level.WARN, 50);
+    private static final byte[] HANDSHAKE = BinaryCodec.HANDSHAKE.getBytes(StandardCharsets.US_ASCII);
+    // Replayed history is framed by these lines, so e.g. LoadGenerator can tell it from live messages
+    public static final String HISTORY_START = "--- Recent messages in ";
+    public static final String HISTORY_END = "--- End of history ---";
+    // Sent instead of the username: ask for a resumable session, or resume one, see resume()
+    public static final String SESSION_REQUEST = "#SESSION";
+    public static final String SESSION_REPLY = "#SESSION ";
+    public static final String RESUME_REQUEST = "#RESUME ";
+    public static final String RESUMED = "#RESUMED ";
+    public static final String RESUME_FAILED = "#RESUME FAILED";
+    // Sent before the username by clients that answer heartbeats, only those get HEARTBEAT_PING and the read timeout
+    public static final String HEARTBEAT_REQUEST = "#HEARTBEAT";
+    // Heartbeat sent to a quiet client, which answers with a PONG message. A client's PING gets HEARTBEAT_PONG back.
+    public static final String HEARTBEAT_PING = "#PING";
+    public static final String HEARTBEAT_PONG = "#PONG";
+    private static final AtomicLongFieldUpdater<ClientHandler> SEND_TOKENS =
+            AtomicLongFieldUpdater.newUpdater(ClientHandler.class, "sendTokens");
+
+    private ClientConnection connection;
     private String clientId;
-    private BufferedReader reader;
-    private PrintWriter writer;
+    private SocketConnection blockingConnection;
     private Server server;
-    private String username;
+    private volatile String username;
     private Map<String, Runnable> commandMap;
     private RoomManager roomManager;
-    private Room currentRoom;
-    public ClientHandler(Socket socket, Server server) {
-        this.socket = socket;
+    private volatile Room currentRoom;
+    private volatile boolean loggedIn;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // Replies made while this handler processes a line are held here and sent as one frame afterwards
+    private final List<String> replyBatch = new ArrayList<>();
+    private Thread batchingThread;
+    // Reused for every inbound line, lines are handled one at a time
+    private final MessageView view = new MessageView();
+    // Text lines until the client asks for binary frames in its first line
+    private volatile WireFormat format = WireFormat.TEXT;
+    private final LineDecoder lineDecoder = new LineDecoder(MAX_LINE_LENGTH);
+    private final LineDecoder.LineHandler onLine = this::handleLine;
+    private BinaryFrameDecoder frameDecoder;
+    private BinaryFrameView frameView;
+    private BinaryFrameDecoder.FrameHandler onFrame;
+    private volatile long bytesRead;
+    // Token bucket of this sender, see TokenBucket
+    private volatile long sendTokens;
+    private final TokenBucket clientLimit;
+    private final TokenBucket roomLimit;
+    private final TokenBucket.Policy limitPolicy;
+    // The clock, read once per batch of inbound bytes rather than per line
+    private long batchNanos = System.nanoTime();
+    // Reading is paused until then, set when the sender has used up its tokens under PAUSE
+    private volatile long readResumeNanos = batchNanos;
+    // Heartbeat and idle timeouts, 0 when turned off, see IdleReaper
+    private final long heartbeatNanos;
+    private final long readTimeoutNanos;
+    private final long writeTimeoutNanos;
+    // Anything read counts, a PONG as much as a chat line
+    private volatile long lastReadNanos = batchNanos;
+    // Only the reaper thread touches these
+    private long lastPingNanos = batchNanos;
+    // Older clients would show the PING and never answer, they are only checked for the write timeout
+    private volatile boolean heartbeats;
+    private boolean writeStalled;
+    private long writeStallSince;
+    private long bytesWrittenSeen;
+    private boolean dropNoticeSent;
+    // Set once the client has a resumable session, room messages then carry their sequence number
+    private volatile String sessionToken;
+    private boolean wantsSession;
+    // Lost the connection, the room and name wait for a resume
+    private volatile boolean detached;
+    // The reaper gave up the room seat of this detached session, a resume has to join the room again
+    private volatile boolean seatReleased;
+    private volatile boolean quitting;
+    // While a resume replays what was missed, live room frames wait here, guarded by this
+    private volatile List<SharedFrame> heldFrames;
+
+    // With a SocketConnection run() does the blocking reads, otherwise (NIO) the event loop feeds onBytes()
+    public ClientHandler(ClientConnection connection, Server server) {
+        this.connection = connection;
+        if (connection instanceof SocketConnection socketConnection) {
+            this.blockingConnection = socketConnection;
+        }
         this.server = server;
-        this.clientId = "Client-"+socket.getPort();
+        this.clientId = "Client-"+connection.getPort();
         this.roomManager = server.getRoomManager();
+        this.clientLimit = server.getConfig().getClientRateLimit();
+        this.roomLimit = server.getConfig().getRoomRateLimit();
+        this.limitPolicy = server.getConfig().getRateLimitPolicy();
+        this.heartbeatNanos = TimeUnit.SECONDS.toNanos(server.getConfig().getHeartbeatSeconds());
+        this.readTimeoutNanos = TimeUnit.SECONDS.toNanos(server.getConfig().getReadTimeoutSeconds());
+        this.writeTimeoutNanos = TimeUnit.SECONDS.toNanos(server.getConfig().getWriteTimeoutSeconds());
 
         initializeCommandMap();
-        try {
-            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.writer = new PrintWriter(socket.getOutputStream(), true);
-        } catch (
-                IOException e) {
-            System.err.println("Failed to get streams for " + clientId + ": " + e.getMessage());
-        }
     }
     private void initializeCommandMap(){
         commandMap = new HashMap<>();
@@ -44,9 +124,50 @@ public class ClientHandler implements Runnable {
     }
 
     public void sendMessage(String message) {
-        if (writer != null){
-            writer.println(message);
+        // Only our own replies are batched, broadcasts from other threads go straight to the queue
+        if (Thread.currentThread() == batchingThread) {
+            replyBatch.add(message);
+            return;
+        }
+        if (connection != null){
+            connection.writeFrame(format.encodeLine(message));
+        }
+    }
+
+    public void sendFrame(SharedFrame frame) {
+        if (heldFrames != null && holdFrame(frame)) {
+            return;
+        }
+        if (Thread.currentThread() == batchingThread) {
+            // Keep the order of our own pending replies
+            flushReplies();
         }
+        if (connection != null) {
+            connection.writeFrame(frame.view(format, sessionToken != null));
+        }
+    }
+
+    private synchronized boolean holdFrame(SharedFrame frame) {
+        if (heldFrames == null) {
+            return false;
+        }
+        heldFrames.add(frame);
+        return true;
+    }
+
+    private void flushReplies() {
+        if (!replyBatch.isEmpty() && connection != null) {
+            connection.writeFrame(format.encodeLines(replyBatch));
+        }
+        replyBatch.clear();
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return connection != null ? connection.getOutboundQueue() : null;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
     }
 
     public String getUsername() {
@@ -57,6 +178,14 @@ public class ClientHandler implements Runnable {
         return clientId;
     }
 
+    public boolean isLoggedIn() {
+        return loggedIn;
+    }
+
+    public boolean isDetached() {
+        return detached;
+    }
+
     public Room getCurrentRoom() {
         return currentRoom;
     }
@@ -65,23 +194,41 @@ public class ClientHandler implements Runnable {
         this.currentRoom = room;
     }
 
-    private void handleParsedMessage(Message msg) {
+    private void handleParsedMessage(InboundMessage msg) {
 
         switch (msg.getType()) {
 
             case LOGIN: {
 
-                String user = msg.getPayloadParts().size() >= 1 ? msg.getPayloadParts().get(0) : "";
+                String user = msg.firstPayload();
 
-                this.username = (user == null || user.isBlank()) ? this.getClientId() : user;
+                String newName = (user == null || user.isBlank()) ? this.getClientId() : user.trim();
+
+                if (!isValidUsername(newName)) {
+
+                    sendMessage("Usernames cannot start with '#' or contain spaces");
+
+                    return;
+
+                }
+
+                if (!server.renameClient(this, username, newName)) {
+
+                    sendMessage("Username '" + newName + "' is already taken.");
+
+                    return;
+
+                }
+
+                this.username = newName;
 
                 sendMessage("Hello " + username + "! You are now connected.");
 
-                if (roomManager.joinRoom(this, "Lobby")) {
+                server.deliverOfflineMessages(newName);
 
-                    this.setCurrentRoom(roomManager.findRoomByName("Lobby"));
+                if (roomManager.joinRoom(this, roomManager.getDefaultRoomName())) {
 
-                    sendMessage("You automatically joined the Lobby room!");
+                    sendMessage("You automatically joined the " + roomManager.getDefaultRoomName() + " room!");
 
                 }
 
@@ -101,7 +248,27 @@ public class ClientHandler implements Runnable {
 
                 }
 
-                joinRoom(roomName);
+                // Valgfri kapacitet, bruges kun hvis rummet oprettes nu: JOIN_ROOM|navn|kapacitet
+
+                int capacity = 0;
+
+                if (msg.payloadCount() > 1) {
+
+                    try {
+
+                        capacity = Integer.parseInt(msg.payload(1).trim());
+
+                    } catch (NumberFormatException e) {
+
+                        sendMessage("Usage: JOIN_ROOM|<room>|<capacity>, capacity must be a number");
+
+                        return;
+
+                    }
+
+                }
+
+                joinRoom(roomName, capacity);
 
                 break;
 
@@ -109,7 +276,21 @@ public class ClientHandler implements Runnable {
 
             case TEXT: {
 
-                if (getCurrentRoom() == null) {
+                // Kun linjer der starter med '/' kan være kommandoer, så almindelig tekst slipper for opslaget
+
+                Runnable command = msg.payloadStartsWith(0, '/') ? commandMap.get(msg.firstPayload().trim().toLowerCase(Locale.ROOT)) : null;
+
+                if (command != null) {
+
+                    command.run();
+
+                    return;
+
+                }
+
+                Room room = getCurrentRoom();
+
+                if (room == null) {
 
                     sendMessage("You are not in any room. Use JOIN_ROOM first.");
 
@@ -117,25 +298,89 @@ public class ClientHandler implements Runnable {
 
                 }
 
-                String content = String.join("|", msg.getPayloadParts()); // bevar '|' i tekst
+                if (!admitMessage(room)) {
+
+                    return;
+
+                }
+
+                String content = msg.rawPayload(); // bevar '|' i tekst
 
                 String formatted = getUsername() + ": " + content;
 
-                getCurrentRoom().broadcastToRoom(formatted, this);
+                room.broadcastToRoom(formatted, this, "[You]: " + content);
+
+                break;
+
+            }
+
+            case PRIVATE: {
+
+                // PRIVATE|modtager|besked, går direkte til modtageren uden om rummet
 
-                sendMessage("[You]: " + content);
+                String target = msg.firstPayload() == null ? "" : msg.firstPayload().trim();
+
+                String text = privateText(msg);
+
+                if (target.isEmpty() || text.isBlank()) {
+
+                    sendMessage("Usage: /pm <username> <message>");
+
+                    return;
+
+                }
+
+                if (!admitMessage(null)) {
+
+                    return;
+
+                }
+
+                sendPrivateMessage(target, text);
 
                 break;
 
             }
 
-            // nemt at udvide med:
+            case FILE_TRANSFER: {
 
-            // case EMOJI: ...
+                // FILE_TRANSFER|modtager|filnavn|størrelse, selve filen går over filporten og ikke over chatforbindelsen
+
+                // Tom modtager deler filen i det nuværende rum, #rum deler den i et bestemt rum
+
+                if (msg.payloadCount() < 3) {
+
+                    sendMessage("Usage: FILE_TRANSFER|<user or #room>|<filename>|<size>");
+
+                    return;
+
+                }
+
+                offerFile(msg.payload(0).trim(), msg.payload(1).trim(), msg.payload(2).trim());
+
+                break;
+
+            }
 
-            // case PRIVATE: payload: target | message...
+            case PING: {
 
-            // case FILE_TRANSFER: payload: filename | size -> Læs 'size' raw bytes efter denne linje
+                sendMessage(HEARTBEAT_PONG);
+
+                break;
+
+            }
+
+            case PONG: {
+
+                // Reading it was the point, see checkIdle()
+
+                break;
+
+            }
+
+            // nemt at udvide med:
+
+            // case EMOJI: ...
 
             default:
 
@@ -201,135 +446,754 @@ public class ClientHandler implements Runnable {
     @Override
     public void run() {
         try {
-            server.addClient(this);
+            start();
 
-            sendMessage("Welcome! Please enter your username: ");
-           String usernameInput = reader.readLine();
+            while (blockingConnection.read(this)) {
 
-            if (usernameInput == null || usernameInput.trim().isEmpty()) {
-                username = clientId;
-            }
-            else username= usernameInput.trim();
+                // every complete line or frame has been handled, read the next chunk
 
-            sendMessage("Hello " + username + "! You are now connected to the chat server.");
+            }
 
-            // Automatisk join Lobby når bruger forbinder
-            if (roomManager.joinRoom(this, "Lobby")) {
-                this.currentRoom = roomManager.findRoomByName("Lobby");
-                sendMessage("You automatically joined the Lobby room!");
+        } catch (AsynchronousCloseException e) {
+            // Closed from another thread, e.g. by the IdleReaper
+        } catch (IOException e) {
+            if (CONNECTION_ERROR_LOG.allow()) {
+                CONNECTION_ERROR_LOG.log("Error with client {}: {}", clientId, e.getMessage());
             }
+        } finally {
+            cleanup();
+        }
+    }
 
-            sendHelpMessage();
+    public void start() {
+        server.addClient(this);
+        IdleReaper reaper = server.getIdleReaper();
+        if (reaper != null) {
+            // The first look works out when the real deadlines are
+            reaper.watch(this, System.nanoTime());
+        }
 
-            String raw;
+        sendMessage("Welcome! Please enter your username: ");
+    }
 
-            while ((raw = reader.readLine()) != null) {
+    // Everything the transport reads ends up here, split into lines or frames depending on the agreed format
+    /**
+     * Handles what was just read. Stops early when the rate limit pauses the
+     * sender and returns how long to pause, 0 otherwise. The transport then
+     * keeps the rest of the bytes, reads nothing new and hands them to
+     * continueBytes() once the pause is over.
+     */
+    public long onBytes(ByteBuffer in) throws IOException {
+        // Only the reading thread writes it
+        bytesRead += in.remaining();
+        lastReadNanos = System.nanoTime();
+        Metrics.get().recordBytesIn(in.remaining());
+        return continueBytes(in);
+    }
 
-                try {
+    public long continueBytes(ByteBuffer in) throws IOException {
+        while (true) {
+            batchNanos = System.nanoTime();
+            while (in.hasRemaining() && !closed.get() && readResumeNanos - batchNanos <= 0) {
+                boolean handled = format == WireFormat.BINARY
+                        ? frameDecoder.decodeFrame(in, onFrame)
+                        : lineDecoder.decodeLine(in, onLine);
+                if (!handled) {
+                    // the rest is an unfinished line or frame, kept by the decoder
+                    break;
+                }
+            }
+            if (closed.get()) {
+                return 0;
+            }
+            long pause = readResumeNanos - System.nanoTime();
+            if (pause > 0) {
+                return pause;
+            }
+            if (!in.hasRemaining()) {
+                return 0;
+            }
+            // The pause ran out while the batch was handled, go on with the rest
+        }
+    }
 
-                    Message msg = Message.parse(raw);
+    public void handleLine(String raw) {
+        batchNanos = System.nanoTime();
+        byte[] bytes = raw.getBytes(StandardCharsets.UTF_8);
+        handleLine(bytes, 0, bytes.length);
+    }
 
-                    handleParsedMessage(msg);
+    // First line is the username, everything after that is protocol lines, parsed in place by MessageView
+    public void handleLine(byte[] buf, int offset, int length) {
+        if (closed.get()) {
+            return;
+        }
+        batchingThread = Thread.currentThread();
+        try {
+            if (!loggedIn) {
+                if (isHandshake(buf, offset, length)) {
+                    switchToBinary();
+                    return;
+                }
+                login(loginName(buf, offset, length));
+                return;
+            }
 
-                } catch (Exception e) {
+            long parseStart = System.nanoTime();
+            MessageView msg = view.parse(buf, offset, length);
+            Metrics.get().recordParse(System.nanoTime() - parseStart);
+            handleParsedMessage(msg);
 
-                    sendMessage("Parse error: " + e.getMessage());
+        } catch (Exception e) {
 
-                }
+            Metrics.get().recordParseError();
+            sendMessage("Parse error: " + e.getMessage());
 
+        } finally {
+            batchingThread = null;
+            flushReplies();
+        }
+    }
+
+    // Same as handleLine, for a binary frame. The first frame carries the username as its first payload field.
+    private void handleFrame(byte[] buf, int offset, int length) {
+        if (closed.get()) {
+            return;
+        }
+        batchingThread = Thread.currentThread();
+        try {
+            long parseStart = System.nanoTime();
+            BinaryFrameView msg = frameView.parse(buf, offset, length);
+            Metrics.get().recordParse(System.nanoTime() - parseStart);
+            if (msg.isNotice()) {
+                throw new IllegalArgumentException("Notices are only sent by the server");
+            }
+            // Text clients get the fields inside lines, a line break would start a line of the sender's choosing
+            if (msg.containsLineBreak()) {
+                throw new IllegalArgumentException("Line breaks are not allowed in a frame");
+            }
+            if (!loggedIn) {
+                login(msg.firstPayload());
+                return;
             }
 
-        } catch (IOException e) {
-            System.err.println("Error with client " + clientId + ": " + e.getMessage());
+            handleParsedMessage(msg);
+
+        } catch (Exception e) {
+
+            Metrics.get().recordParseError();
+            sendMessage("Parse error: " + e.getMessage());
+
         } finally {
-            cleanup();
+            batchingThread = null;
+            flushReplies();
         }
     }
 
+    // The console client sends its username as a protocol line like any other, the name is its payload as in a binary frame
+    private String loginName(byte[] buf, int offset, int length) {
+        try {
+            return view.parse(buf, offset, length).firstPayload();
+        } catch (RuntimeException e) {
+            return new String(buf, offset, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Room lines start with the sender's name, so a name must not look like
+     * the start of a control line ("#SEQ 5 ..."), and the clients split
+     * those lines on spaces.
+     */
+    static boolean isValidUsername(String name) {
+        if (name.isEmpty() || name.charAt(0) == '#') {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isWhitespace(c) || Character.isISOControl(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isHandshake(byte[] buf, int offset, int length) {
+        return length == HANDSHAKE.length && Arrays.equals(buf, offset, offset + length, HANDSHAKE, 0, length);
+    }
+
+    // The OK still goes out as a text line, everything after it in both directions is binary frames
+    private void switchToBinary() {
+        flushReplies();
+        if (connection != null) {
+            connection.writeFrame(WireFormat.TEXT.encodeLine(BinaryCodec.HANDSHAKE_OK));
+        }
+        frameDecoder = new BinaryFrameDecoder(MAX_LINE_LENGTH);
+        frameView = new BinaryFrameView();
+        onFrame = this::handleFrame;
+        format = WireFormat.BINARY;
+    }
+
+    private void login(String usernameInput) {
+        if (SESSION_REQUEST.equals(usernameInput)) {
+            // Asked for before the username, the token is sent once the login succeeds
+            wantsSession = true;
+            return;
+        }
+        if (HEARTBEAT_REQUEST.equals(usernameInput)) {
+            heartbeats = true;
+            return;
+        }
+        if (usernameInput != null && usernameInput.startsWith(RESUME_REQUEST)) {
+            resume(usernameInput.substring(RESUME_REQUEST.length()).trim());
+            return;
+        }
+        String name;
+        if (usernameInput == null || usernameInput.trim().isEmpty()) {
+            name = clientId;
+        }
+        else name = usernameInput.trim();
+
+        if (!isValidUsername(name)) {
+            sendMessage("Usernames cannot start with '#' or contain spaces, please enter another: ");
+            return;
+        }
+
+        // Brugernavne er unikke, så spørg igen hvis navnet er taget
+        if (!server.claimUsername(name, this)) {
+            sendMessage("Username '" + name + "' is already taken, please enter another: ");
+            return;
+        }
+        loggedIn = true;
+        username = name;
+
+        sendMessage("Hello " + username + "! You are now connected to the chat server.");
+        if (wantsSession && server.isResumeEnabled()) {
+            sessionToken = server.openSession(this);
+            sendMessage(SESSION_REPLY + sessionToken + " " + server.getConfig().getResumeWindowSeconds());
+        }
+
+        // Private messages sent while we were reconnecting
+        server.deliverOfflineMessages(name);
+
+        // Automatisk join Lobby når bruger forbinder
+        if (roomManager.joinRoom(this, roomManager.getDefaultRoomName())) {
+            sendMessage("You automatically joined the " + roomManager.getDefaultRoomName() + " room!");
+            explainQuietRoom();
+            replayHistory(currentRoom);
+        }
+
+        sendHelpMessage();
+    }
+
+
+    /**
+     * "#RESUME <token> <seq>" instead of a username. Takes over the session
+     * of a connection that dropped: same name, same room and no join or
+     * leave notice, and only the room messages numbered after seq are sent.
+     * An unknown or expired token gets RESUME_FAILED and a normal login.
+     */
+    private void resume(String request) {
+        String[] parts = request.split("\\s+");
+        long seq = -1;
+        if (parts.length == 2) {
+            try {
+                seq = Long.parseLong(parts[1]);
+            } catch (NumberFormatException e) {
+                // Stays -1
+            }
+        }
+        ClientHandler old = seq >= 0 ? server.takeSession(parts[0]) : null;
+        if (old == null) {
+            wantsSession = true;
+            sendMessage(RESUME_FAILED);
+            sendMessage("Welcome! Please enter your username: ");
+            return;
+        }
+        Room room = old.handOver();
+        username = old.username;
+        sendTokens = old.sendTokens;
+        sessionToken = parts[0];
+        loggedIn = true;
+        server.resumeSession(sessionToken, old, this);
+        boolean seated = false;
+        if (room != null) {
+            heldFrames = new ArrayList<>();
+            seated = takeSeat(old, room);
+        }
+        sendMessage(RESUMED + (seated ? currentRoom.getRoomName() : ""));
+        if (room != null && !seated && old.seatReleased) {
+            sendMessage("Room '" + room.getRoomName() + "' filled up while you were away, use /join to pick a room");
+        }
+        if (room != null) {
+            releaseHeldFrames(seated ? replayMissed(currentRoom, seq) : seq);
+        }
+        server.deliverOfflineMessages(username);
+    }
+
+    // Takes over the old handler's place in the room, or joins it again if the reaper gave that place up
+    private boolean takeSeat(ClientHandler old, Room room) {
+        if (old.seatReleased) {
+            return roomManager.joinRoom(this, room.getRoomName(), 0) == RoomManager.JoinResult.JOINED;
+        }
+        if (!room.replaceClient(old, this)) {
+            return false;
+        }
+        currentRoom = room;
+        return true;
+    }
+
+    // Everything numbered after seq that the room still has in memory, as one write. Returns the last number sent.
+    private long replayMissed(Room room, long seq) {
+        long latest = room.getLastSeq();
+        List<SharedFrame> missed = roomManager.messagesSince(room, seq);
+        flushReplies();
+        if (latest > seq && (missed.isEmpty() || missed.get(0).getSeq() > seq + 1)) {
+            sendMessage("[Some messages from while you were away are no longer available]");
+            flushReplies();
+        }
+        if (missed.isEmpty() || connection == null) {
+            return seq;
+        }
+        int size = 0;
+        for (SharedFrame frame : missed) {
+            size += frame.size(format, true);
+        }
+        ByteBuffer batch = ByteBuffer.allocate(size);
+        for (SharedFrame frame : missed) {
+            batch.put(frame.view(format, true));
+        }
+        connection.writeFrame(batch.flip());
+        return missed.get(missed.size() - 1).getSeq();
+    }
+
+    // Sends what arrived during the replay, minus what the replay already had, then goes back to sending directly
+    private void releaseHeldFrames(long replayed) {
+        while (true) {
+            List<SharedFrame> held;
+            synchronized (this) {
+                held = heldFrames;
+                if (held.isEmpty()) {
+                    heldFrames = null;
+                    return;
+                }
+                heldFrames = new ArrayList<>();
+            }
+            for (SharedFrame frame : held) {
+                if ((frame.getSeq() == 0 || frame.getSeq() > replayed) && connection != null) {
+                    connection.writeFrame(frame.view(format, true));
+                }
+            }
+        }
+    }
+
+    private void explainQuietRoom() {
+        if (roomManager.getPresence().isSuppressed(currentRoom)) {
+            sendMessage("This room is too big for join and leave notices, /who shows who is here");
+        }
+    }
 
     private void sendHelpMessage() {
         sendMessage("=== CHAT COMMANDS ===\n" +
-                "/join <room>  - Join a room (Lobby, testRoom1, testRoom2, testRoom3, testRoom4)\n" +
+                "/join <room>  - Join a room, it is created if it does not exist\n" +
                 "/leave        - Leave current room\n" +
                 "/rooms        - List all rooms\n" +
                 "/who          - Show users in current room\n" +
+                "/pm <user> <message> - Send a private message\n" +
+                "/send <user> <file>  - Send a file, chat keeps working meanwhile\n" +
+                "/share <file>        - Share a file in the current room\n" +
+                "/get <file>          - Download a file shared in the room\n" +
                 "/help         - Show this message again\n" +
                 "/quit         - Leave the chat");
     }
 
     private void listRooms(){
         sendMessage("-----AVAILABLE ROOMS------");
-        for (Room room : roomManager.getAllRooms()) {
+        // There can be very many rooms, only the first ones are picked out and listed
+        List<Room> rooms = roomManager.firstRooms(MAX_LISTED_ROOMS, RoomManager.LISTING_ORDER);
+        for (Room room : rooms) {
             int occupants= room.howManyInroom();
-            sendMessage(room.getRoomName()+" "+occupants+"/"+room.getMaxCapacity());
+            // Indented, so a room called "#FILE ..." is not taken for a control line
+            sendMessage("  "+room.getRoomName()+" "+occupants+"/"+room.getMaxCapacity());
+        }
+        int total = roomManager.getRoomCount();
+        if (total > rooms.size()) {
+            sendMessage("... and " + (total - rooms.size()) + " more");
         }
     }
 
     private void leaveRoom() {
-        if (currentRoom==null) {
+        Room room = currentRoom;
+        if (room==null) {
             sendMessage("You are not in a room");
             return;
         }
-        String roomName = currentRoom.getRoomName();
-        if (currentRoom.removeClient(this)){
+        String roomName = room.getRoomName();
+        if (room.removeClient(this)){
             sendMessage("You have left the room "+roomName);
             currentRoom = null;
         }
     }
     private void showWhoInRoom() {
-        if (currentRoom != null) {
-            sendMessage("=== USERS IN " + currentRoom.getRoomName().toUpperCase() + " ===");
-            for (String name : currentRoom.clientNamesInRoom()) {
+        Room room = currentRoom;
+        if (room != null) {
+            sendMessage("=== USERS IN " + room.getRoomName().toUpperCase() + " (" + room.howManyInroom() + " here) ===");
+            for (String name : room.clientNamesInRoom()) {
                 sendMessage("- " + name);
             }
+            Cluster cluster = server.getCluster();
+            if (cluster != null) {
+                for (String name : cluster.remoteMembers(room.getRoomName())) {
+                    sendMessage("- " + name);
+                }
+            }
         } else {
             sendMessage("You are not in any room.");
         }
     }
-    private void joinRoom(String roomName) {
-        if (roomManager.joinRoom(this, roomName)) {
-            Room room = roomManager.findRoomByName(roomName);
-            this.currentRoom = room;
-            sendMessage("You joined room: " + roomName);
-        } else {
-            Room room = roomManager.findRoomByName(roomName);
-            if (room == null) {
-                sendMessage("Room '" + roomName + "' does not exist.");
-                sendMessage("Available rooms: Lobby, testRoom1, testRoom2, testRoom3, testRoom4");
-            } else if (room.isRoomFull()) {
+    private void joinRoom(String roomName, int capacity) {
+        // The room is created if it does not exist, moveClient sets currentRoom when it succeeds
+        switch (roomManager.joinRoom(this, roomName, capacity)) {
+            case JOINED:
+                sendMessage("You joined room: " + roomName);
+                explainQuietRoom();
+                replayHistory(currentRoom);
+                break;
+            case FULL:
                 sendMessage("Room '" + roomName + "' is full!");
-            } else {
-                sendMessage("Could not join room: " + roomName);
+                break;
+            case INVALID_NAME:
+                sendMessage("Room names must be 1-" + RoomManager.MAX_ROOM_NAME_LENGTH + " characters, without control characters");
+                break;
+            default:
+                sendMessage("Could not join room: " + roomName + " (too many rooms)");
+        }
+    }
+    /**
+     * Takes a token from this sender's bucket and, for a room message, the
+     * room's bucket. Under PAUSE the message always goes out and reading stops
+     * until the tokens are back, under DROP it is dropped and the sender is
+     * told once, until a message gets through again.
+     */
+    private boolean admitMessage(Room room) {
+        long now = batchNanos;
+        if (limitPolicy == TokenBucket.Policy.PAUSE) {
+            long wait = clientLimit.take(SEND_TOKENS, this, now);
+            if (room != null) {
+                wait = Math.max(wait, room.takeSendToken(roomLimit, now, true));
+            }
+            if (wait > 0) {
+                readResumeNanos = now + wait;
+                Metrics.get().recordRateLimited();
+            }
+            return true;
+        }
+        TokenBucket limit = clientLimit;
+        long wait = clientLimit.tryTake(SEND_TOKENS, this, now);
+        if (wait == 0 && room != null) {
+            limit = roomLimit;
+            wait = room.takeSendToken(roomLimit, now, false);
+        }
+        if (wait == 0) {
+            dropNoticeSent = false;
+            return true;
+        }
+        Metrics.get().recordRateLimited();
+        if (!dropNoticeSent) {
+            dropNoticeSent = true;
+            sendMessage("You are sending too fast, messages are dropped (limit " + (long) limit.getPerSecond() + " per second)");
+        }
+        return false;
+    }
+
+    // Everything after the target, a '|' in the message itself split it into more fields
+    private static String privateText(InboundMessage msg) {
+        if (msg.payloadCount() < 2) {
+            return "";
+        }
+        StringBuilder text = new StringBuilder(msg.payload(1));
+        for (int i = 2; i < msg.payloadCount(); i++) {
+            text.append('|').append(msg.payload(i));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Looks the target up in the username index and writes to its outbound queue,
+     * no room is involved. If the target is reconnecting the message waits in its offline inbox.
+     */
+    private void sendPrivateMessage(String target, String text) {
+        String line = "[PM from " + getUsername() + "]: " + text;
+        ClientHandler recipient = server.findClientByUsername(target);
+        if (recipient == this) {
+            sendMessage("You cannot send a private message to yourself");
+            return;
+        }
+        // A detached session gets it from the offline inbox when it is resumed
+        if (recipient != null && !recipient.isDetached()) {
+            recipient.sendMessage(line);
+            sendMessage("[PM to " + recipient.getUsername() + "]: " + text);
+            return;
+        }
+        Cluster cluster = server.getCluster();
+        if (cluster != null && cluster.sendPrivate(target, line)) {
+            sendMessage("[PM to " + target + "]: " + text);
+            return;
+        }
+        if (server.offerOfflineMessage(target, line)) {
+            sendMessage("[PM to " + target + "]: " + text + " (offline, delivered when they log in)");
+            // They may have logged in between the lookup and the offer
+            server.deliverOfflineMessages(target);
+            return;
+        }
+        // Refused because the inbox was just drained by a login, or there is no such user
+        recipient = server.findClientByUsername(target);
+        if (recipient != null && recipient != this && !recipient.isDetached()) {
+            recipient.sendMessage(line);
+            sendMessage("[PM to " + recipient.getUsername() + "]: " + text);
+        } else {
+            sendMessage("User '" + target + "' is not online");
+        }
+    }
+
+    /**
+     * Registers the file with the relay and tells both sides where to connect.
+     * The "#FILE" lines are read by Client, which opens the data connections itself,
+     * the chat connection goes on as before while the file streams.
+     * A file for a room is only uploaded here, the room gets a reference once it is stored.
+     */
+    private void offerFile(String target, String fileName, String sizeText) {
+        FileRelay relay = server.getFileRelay();
+        if (!relay.isListening()) {
+            sendMessage("File transfer is not enabled on this server");
+            return;
+        }
+        long size;
+        try {
+            size = Long.parseLong(sizeText);
+        } catch (NumberFormatException e) {
+            sendMessage("Usage: FILE_TRANSFER|<user>|<filename>|<size>, size must be a number");
+            return;
+        }
+        if (size <= 0 || size > relay.getMaxFileBytes()) {
+            sendMessage("File size must be 1-" + relay.getMaxFileBytes() + " bytes");
+            return;
+        }
+        // Only the last path element, and no spaces since the #FILE lines are split on them
+        String name = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1).replace(' ', '_');
+        if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+            sendMessage("Invalid file name: " + fileName);
+            return;
+        }
+        if (target.isEmpty() || target.startsWith("#")) {
+            Room room = target.isEmpty() ? currentRoom : roomManager.findRoomByName(target.substring(1));
+            if (room == null || !room.containsClient(this)) {
+                sendMessage("You can only share files in a room you are in");
+                return;
             }
+            String token = relay.offerToRoom(getUsername(), room, name, size);
+            sendMessage("#FILE " + FileRelay.UPLOAD + " " + relay.getPort() + " " + token + " " + size + " " + name);
+            return;
+        }
+        ClientHandler recipient = server.findClientByUsername(target);
+        if (recipient == null || recipient == this || recipient.isDetached()) {
+            sendMessage("User '" + target + "' is not online");
+            return;
         }
+        String token = relay.offer(getUsername(), recipient.getUsername(), name, size);
+        recipient.sendMessage("[" + getUsername() + " is sending you '" + name + "' (" + size + " bytes)]");
+        recipient.sendMessage("#FILE " + FileRelay.DOWNLOAD + " " + relay.getPort() + " " + token + " " + size + " " + name);
+        sendMessage("#FILE " + FileRelay.UPLOAD + " " + relay.getPort() + " " + token + " " + size + " " + name);
     }
+
+    // The cached frames are already encoded, they are copied into one buffer and queued as a single write
+    private void replayHistory(Room room) {
+        if (room == null || connection == null) {
+            return;
+        }
+        // Files shared in the room are not in its history, the ones still stored are offered here
+        server.getFileRelay().replayShares(this, room);
+        List<SharedFrame> history = roomManager.recentMessages(room);
+        if (history.isEmpty()) {
+            return;
+        }
+        flushReplies();
+        ByteBuffer start = format.encodeLine(HISTORY_START + room.getRoomName() + " ---");
+        ByteBuffer end = format.encodeLine(HISTORY_END);
+        int size = start.remaining() + end.remaining();
+        for (SharedFrame frame : history) {
+            size += frame.size(format, sessionToken != null);
+        }
+        ByteBuffer batch = ByteBuffer.allocate(size).put(start);
+        for (SharedFrame frame : history) {
+            batch.put(frame.view(format, sessionToken != null));
+        }
+        connection.writeFrame(batch.put(end).flip());
+    }
+
     private void quitClient() {
+        // A /quit is meant, the session is not kept
+        quitting = true;
         sendMessage("Goodbye!");
-        try {
-            socket.close();
-        } catch (IOException e) {
-            // Handle quietly
+        flushReplies();
+        if (connection != null) {
+            connection.close();
+        }
+    }
+    /**
+     * Another node gave the same name out first, see Cluster. The client
+     * keeps its room and falls back to its client id.
+     */
+    void loseUsername(String name, String node) {
+        String current = username;
+        if (current == null || !RoomManager.key(current).equals(RoomManager.key(name))) {
+            return;
+        }
+        if (!server.renameClient(this, current, clientId)) {
+            return;
+        }
+        username = clientId;
+        Room room = currentRoom;
+        Cluster cluster = server.getCluster();
+        if (room != null && cluster != null) {
+            cluster.memberLeft(room.getRoomName(), current);
+            cluster.memberJoined(room.getRoomName(), clientId);
+        }
+        sendMessage("Username '" + current + "' was taken on server " + node + " first, you are now " + clientId);
+    }
+
+    /**
+     * Called by the IdleReaper when this handler is due. Closes the
+     * connection when frames are queued and not one byte got written within
+     * the write timeout. A client that asked for heartbeats is also closed
+     * when nothing was read within the read timeout, and gets a PING once it
+     * is logged in and has been quiet for a heartbeat. Returns when to look
+     * again, 0 once the connection is closed.
+     */
+    long checkIdle(long now) {
+        if (closed.get()) {
+            return 0;
+        }
+        long wait = Long.MAX_VALUE;
+        long lastRead = lastReadNanos;
+        boolean heartbeats = this.heartbeats;
+        if (heartbeats && readTimeoutNanos > 0) {
+            long idle = now - lastRead;
+            if (idle >= readTimeoutNanos) {
+                reap(true, idle);
+                return 0;
+            }
+            wait = readTimeoutNanos - idle;
+        }
+        OutboundQueue queue = getOutboundQueue();
+        if (writeTimeoutNanos > 0 && queue != null) {
+            long written = queue.bytesWritten();
+            if (queue.isEmpty()) {
+                writeStalled = false;
+            } else if (!writeStalled || written != bytesWrittenSeen) {
+                // Something waits to be written, it has until the timeout to move
+                writeStalled = true;
+                writeStallSince = now;
+                bytesWrittenSeen = written;
+            } else if (now - writeStallSince >= writeTimeoutNanos) {
+                reap(false, now - writeStallSince);
+                return 0;
+            }
+            wait = Math.min(wait, writeStalled ? writeTimeoutNanos - (now - writeStallSince) : writeTimeoutNanos);
+        }
+        if (heartbeats && heartbeatNanos > 0) {
+            long quiet = now - (lastPingNanos - lastRead > 0 ? lastPingNanos : lastRead);
+            if (quiet >= heartbeatNanos) {
+                // Before the login there is nobody to ping yet, only the read timeout applies
+                if (loggedIn) {
+                    lastPingNanos = now;
+                    sendMessage(HEARTBEAT_PING);
+                    server.getIdleReaper().pinged();
+                }
+                quiet = 0;
+            }
+            wait = Math.min(wait, heartbeatNanos - quiet);
+        }
+        if (wait == Long.MAX_VALUE) {
+            // Before the login heartbeats may still be asked for, after it there is nothing left to check
+            return loggedIn ? 0 : now + TimeUnit.SECONDS.toNanos(1);
         }
+        return now + wait;
     }
-    private void cleanup() {
+
+    /**
+     * Gone without a FIN or not reading: nothing queued is worth sending and
+     * the room seat is given up now. With a session the name and offline
+     * inbox are still kept for a resume, which joins the room again.
+     */
+    private void reap(boolean reading, long idleNanos) {
+        server.getIdleReaper().reaped(this, reading, idleNanos);
+        if (connection != null) {
+            connection.abort();
+        }
+        Room room = currentRoom;
+        if (sessionToken != null && !quitting && room != null && room.removeClient(this)) {
+            seatReleased = true;
+        }
+        cleanup();
+    }
+
+    // Safe to call more than once, both the read loop and the transport may trigger it
+    public void cleanup() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        String token = sessionToken;
+        if (token != null && !quitting) {
+            // Name, offline inbox and room seat (unless reap() gave it up) are kept for the resume window, see Server.detachSession
+            detached = true;
+            if (connection != null) connection.close();
+            server.detachSession(token, this);
+            if (DISCONNECT_LOG.allow()) {
+                DISCONNECT_LOG.log("{} ({}) lost the connection, session kept for a resume", username, clientId);
+            }
+            return;
+        }
+        if (token != null) {
+            server.closeSession(token, this);
+        }
+        release();
+    }
+
+    /**
+     * Called on the handler whose session is being resumed by a new
+     * connection. Stops it for good without leaving the room or giving up
+     * the name, and returns the room the new handler takes over.
+     */
+    Room handOver() {
+        closed.set(true);
+        detached = true;
+        if (connection != null) {
+            connection.close();
+        }
+        return currentRoom;
+    }
+
+    // Leaves the room and gives up the name, on a real disconnect or when a kept session runs out
+    void release() {
         try {
             // Leave current room
-            if (currentRoom != null) {
-                currentRoom.removeClient(this);
+            Room room = currentRoom;
+            if (room != null) {
+                room.removeClient(this);
             }
 
             // Remove from server
             server.removeClient(this);
 
-            // Close streams and socket
-            if (reader != null) reader.close();
-            if (writer != null) writer.close();
-            if (socket != null) socket.close();
+            // Close socket
+            if (connection != null) connection.close();
 
-            System.out.println(username + " (" + clientId + ") disconnected");
+            if (DISCONNECT_LOG.allow()) {
+                DISCONNECT_LOG.log("{} ({}) disconnected", username, clientId);
+            }
 
-        } catch (IOException e) {
-            System.err.println("Error during cleanup for " + clientId + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.warn("Error during cleanup for {}: {}", clientId, e.getMessage());
         }
     }
 
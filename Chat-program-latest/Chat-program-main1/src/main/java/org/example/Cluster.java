@@ -0,0 +1,500 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Several Server processes sharing their rooms.
+ *
+ * The nodes are listed in a cluster file, one "name host:port" line per
+ * node, where port is the node's cluster port. Every node has a ClusterLink
+ * to every other node for what it sends and accepts their links for what it
+ * receives. What a node sends:
+ * - every message broadcast in a room and the room's join and leave notices, see below
+ * - who is in which room, to every node
+ * - which users are logged in on it, and private messages for users on another node
+ *
+ * Every room is owned by one node, picked by a HashRing over the names of
+ * the nodes that are reachable. A message said in a room goes over the one
+ * link to the owner, and the owner passes it on only to the nodes that have
+ * members in the room. So a room whose members all sit on one node costs no
+ * cluster traffic at all, and a room spread over many nodes costs the sender
+ * one frame instead of one per node. When a node comes or goes the ring is
+ * rebuilt and only the rooms next to that node's points get a new owner.
+ * The owner only routes, the members, history and capacity of a room stay
+ * on the nodes the members are logged in on, so nothing has to be copied
+ * when a room moves.
+ *
+ * Each node keeps what the others told it per node. When a link comes up
+ * the first frames are the sender's whole state, which replaces whatever the
+ * receiver had for that node, and when a node goes away its users and
+ * memberships go with it. So membership and the username directory follow
+ * the nodes that are actually reachable.
+ *
+ * Usernames are checked against all nodes before they are taken. If two
+ * nodes give out the same name at the same moment, both find out when the
+ * other one's claim arrives and both keep the earlier claim (the lower node
+ * name on a tie), the other client falls back to its client id.
+ *
+ * Eksempel, three nodes on one machine (cluster.conf has "a localhost:6001",
+ * "b localhost:6002" and "c localhost:6003"):
+ * java org.example.Server --node=a --cluster-config=cluster.conf --port=5001 --message-log-dir=log-a --file-store-dir=files-a
+ * java org.example.Server --node=b --cluster-config=cluster.conf --port=5011 --message-log-dir=log-b --file-store-dir=files-b
+ * java org.example.Server --node=c --cluster-config=cluster.conf --port=5021 --message-log-dir=log-c --file-store-dir=files-c
+ */
+public class Cluster {
+    static final byte HELLO = 1;
+    static final byte ROOM_MESSAGE = 2;
+    static final byte ROOM_NOTICE = 3;
+    static final byte MEMBER_JOIN = 4;
+    static final byte MEMBER_LEAVE = 5;
+    static final byte USER_ONLINE = 6;
+    static final byte USER_OFFLINE = 7;
+    static final byte PRIVATE = 8;
+    // To the owner of the room, which delivers it and passes it on as ROOM_MESSAGE or ROOM_NOTICE
+    static final byte ROUTE_MESSAGE = 9;
+    static final byte ROUTE_NOTICE = 10;
+
+    private static final int MAX_FRAME = 1024 * 1024;
+
+    public record Member(String name, String host, int port) {
+    }
+
+    private record RemoteUser(String name, long claimMillis) {
+    }
+
+    // What one other node has told us
+    private static final class NodeState {
+        final Map<String, RemoteUser> users = new ConcurrentHashMap<>();
+        // Room key -> names of that node's members
+        final Map<String, Set<String>> rooms = new ConcurrentHashMap<>();
+    }
+
+    private final Server server;
+    private final Member self;
+    private final List<ClusterLink> links = new ArrayList<>();
+    private final Map<String, NodeState> nodes = new ConcurrentHashMap<>();
+    // When each of our own users took their name, to settle a name given out on two nodes at once
+    private final Map<String, Long> localClaims = new ConcurrentHashMap<>();
+    // Over this node and the nodes in the nodes map
+    private volatile HashRing ring;
+    private final LongAdder routedToOwner = new LongAdder();
+    private final LongAdder passedOn = new LongAdder();
+
+    public Cluster(Server server, ServerConfig config) {
+        this.server = server;
+        List<Member> members = readMembers(Path.of(config.getClusterConfig()));
+        Member found = null;
+        for (Member member : members) {
+            if (member.name().equals(config.getNodeName())) {
+                found = member;
+            } else {
+                links.add(new ClusterLink(member, this::snapshot));
+            }
+        }
+        if (found == null) {
+            throw new IllegalArgumentException("Node '" + config.getNodeName() + "' is not in " + config.getClusterConfig());
+        }
+        this.self = found;
+        this.ring = new HashRing(List.of(self.name()));
+    }
+
+    private static List<Member> readMembers(Path file) {
+        List<Member> members = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                int colon = parts.length == 2 ? parts[1].lastIndexOf(':') : -1;
+                if (colon < 0) {
+                    throw new IllegalArgumentException("Expected 'name host:port' in " + file + ": " + line);
+                }
+                members.add(new Member(parts[0], parts[1].substring(0, colon), Integer.parseInt(parts[1].substring(colon + 1))));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the cluster file " + file, e);
+        }
+        return members;
+    }
+
+    // Binds the cluster port and starts connecting to the other nodes
+    public void start() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(self.port()));
+        Thread.ofVirtual().name("cluster-accept").start(() -> {
+            try {
+                while (true) {
+                    SocketChannel channel = serverChannel.accept();
+                    Thread.ofVirtual().start(() -> receive(channel));
+                }
+            } catch (ClosedChannelException e) {
+                // Server was stopped
+            } catch (IOException e) {
+                Log.error("Cluster port stopped: {}", e.getMessage());
+            }
+        });
+        for (ClusterLink link : links) {
+            link.start();
+        }
+        Log.info("Cluster node {} listening on port {}, {} other nodes", self.name(), self.port(), links.size());
+    }
+
+    public String getNodeName() {
+        return self.name();
+    }
+
+    public List<ClusterLink> getLinks() {
+        return links;
+    }
+
+    // ---- sent from this node ----
+
+    public void publishMessage(String room, String line) {
+        sendToRoom(ROUTE_MESSAGE, ROOM_MESSAGE, room, line);
+    }
+
+    public void publishNotice(String room, String line) {
+        sendToRoom(ROUTE_NOTICE, ROOM_NOTICE, room, line);
+    }
+
+    // Through the owner when that is another node, straight to the member nodes when we own the room
+    private void sendToRoom(byte route, byte deliver, String room, String line) {
+        String key = RoomManager.key(room);
+        if (!hasRemoteMembers(key)) {
+            // Every member is on this node and already has it, the owner would have nobody to pass it on to
+            return;
+        }
+        String owner = ring.ownerOf(key);
+        if (!owner.equals(self.name())) {
+            ClusterLink link = linkTo(owner);
+            if (link != null && link.isConnected()) {
+                link.send(encode(route, room, line));
+                routedToOwner.increment();
+                return;
+            }
+            // The owner is not reachable from here right now, the members still are
+        }
+        passOn(key, encode(deliver, room, line), null);
+    }
+
+    // To every node with members in the room except the one it came from
+    private void passOn(String key, ByteBuffer frame, String from) {
+        for (ClusterLink link : links) {
+            String node = link.getPeer().name();
+            NodeState state = nodes.get(node);
+            if (state != null && !node.equals(from) && state.rooms.containsKey(key)) {
+                link.send(frame);
+                passedOn.increment();
+            }
+        }
+    }
+
+    private boolean hasRemoteMembers(String key) {
+        for (NodeState state : nodes.values()) {
+            if (state.rooms.containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ClusterLink linkTo(String node) {
+        for (ClusterLink link : links) {
+            if (link.getPeer().name().equals(node)) {
+                return link;
+            }
+        }
+        return null;
+    }
+
+    public void memberJoined(String room, String user) {
+        publish(encode(MEMBER_JOIN, room, user));
+    }
+
+    public void memberLeft(String room, String user) {
+        publish(encode(MEMBER_LEAVE, room, user));
+    }
+
+    public void userOnline(String user) {
+        long now = System.currentTimeMillis();
+        localClaims.put(RoomManager.key(user), now);
+        publish(encode(USER_ONLINE, user, Long.toString(now)));
+    }
+
+    public void userOffline(String user) {
+        localClaims.remove(RoomManager.key(user));
+        publish(encode(USER_OFFLINE, user, ""));
+    }
+
+    // Encoded once, every link sends the same bytes
+    private void publish(ByteBuffer frame) {
+        for (ClusterLink link : links) {
+            link.send(frame);
+        }
+    }
+
+    // False if the user is not logged in on any reachable node
+    public boolean sendPrivate(String user, String line) {
+        String node = nodeOf(user);
+        ClusterLink link = node != null ? linkTo(node) : null;
+        if (link == null || !link.isConnected()) {
+            return false;
+        }
+        link.send(encode(PRIVATE, user, line));
+        return true;
+    }
+
+    // The node the user is logged in on, null if none of the others has them
+    public String nodeOf(String user) {
+        String key = RoomManager.key(user);
+        for (Map.Entry<String, NodeState> node : nodes.entrySet()) {
+            if (node.getValue().users.containsKey(key)) {
+                return node.getKey();
+            }
+        }
+        return null;
+    }
+
+    public boolean isTakenElsewhere(String user) {
+        return nodeOf(user) != null;
+    }
+
+    // "name (node)" for every member of the room on the other nodes
+    public List<String> remoteMembers(String room) {
+        List<String> names = new ArrayList<>();
+        String key = RoomManager.key(room);
+        for (Map.Entry<String, NodeState> node : nodes.entrySet()) {
+            Set<String> members = node.getValue().rooms.get(key);
+            if (members != null) {
+                for (String name : members) {
+                    names.add(name + " (" + node.getKey() + ")");
+                }
+            }
+        }
+        return names;
+    }
+
+    // The node that routes the room's messages, maybe this one
+    public String ownerOf(String room) {
+        return ring.ownerOf(RoomManager.key(room));
+    }
+
+    public boolean ownsRoom(String room) {
+        return ownerOf(room).equals(self.name());
+    }
+
+    public List<String> getRingNodes() {
+        return ring.getNodes();
+    }
+
+    // Room messages and notices sent to their owner
+    public long getRoutedToOwner() {
+        return routedToOwner.sum();
+    }
+
+    // Frames sent on to member nodes, as owner or because the owner was not reachable
+    public long getPassedOn() {
+        return passedOn.sum();
+    }
+
+    /**
+     * Builds the ring again from the nodes reachable now. The owner of a
+     * room only decides where its messages are routed, so moving rooms is
+     * just this, the log says how many of the rooms here changed owner.
+     */
+    private synchronized void updateRing() {
+        List<String> reachable = new ArrayList<>(nodes.keySet());
+        reachable.add(self.name());
+        HashRing old = ring;
+        HashRing updated = new HashRing(reachable);
+        if (updated.getNodes().equals(old.getNodes())) {
+            return;
+        }
+        ring = updated;
+        int moved = 0;
+        List<Room> rooms = server.getRoomManager().getAllRooms();
+        for (Room room : rooms) {
+            String key = RoomManager.key(room.getRoomName());
+            if (!old.ownerOf(key).equals(updated.ownerOf(key))) {
+                moved++;
+            }
+        }
+        Log.info("Cluster ring is now {}, {} of the {} rooms here changed owner", updated.getNodes(), moved, rooms.size());
+    }
+
+    public int getRemoteUserCount() {
+        int count = 0;
+        for (NodeState node : nodes.values()) {
+            count += node.users.size();
+        }
+        return count;
+    }
+
+    /**
+     * This node's whole state, sent first on every new link: who we are,
+     * every user logged in here and every room they are in.
+     */
+    private List<ByteBuffer> snapshot() {
+        List<ByteBuffer> frames = new ArrayList<>();
+        frames.add(encode(HELLO, self.name(), ""));
+        for (ClientHandler client : server.getClients()) {
+            String user = client.getUsername();
+            if (!client.isLoggedIn() || user == null) {
+                continue;
+            }
+            Long claimed = localClaims.get(RoomManager.key(user));
+            frames.add(encode(USER_ONLINE, user, Long.toString(claimed != null ? claimed : System.currentTimeMillis())));
+            Room room = client.getCurrentRoom();
+            if (room != null) {
+                frames.add(encode(MEMBER_JOIN, room.getRoomName(), user));
+            }
+        }
+        return frames;
+    }
+
+    // ---- received from the other nodes ----
+
+    private void receive(SocketChannel channel) {
+        String node = null;
+        NodeState state = null;
+        try (channel; DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024))) {
+            byte[] buf = new byte[256];
+            while (true) {
+                int length = in.readInt();
+                if (length < 1 || length > MAX_FRAME) {
+                    throw new IOException("Bad cluster frame length " + length);
+                }
+                if (length > buf.length) {
+                    buf = new byte[Math.max(length, buf.length * 2)];
+                }
+                in.readFully(buf, 0, length);
+                ByteBuffer frame = ByteBuffer.wrap(buf, 0, length);
+                byte type = frame.get();
+                String first = readString(frame);
+                String second = readString(frame);
+                if (type == HELLO) {
+                    // A new link from that node, what it sends next replaces what we knew
+                    node = first;
+                    state = new NodeState();
+                    NodeState old = nodes.put(node, state);
+                    Log.info("Cluster node {} connected{}", node, old != null ? " again" : "");
+                    updateRing();
+                    continue;
+                }
+                if (state == null) {
+                    throw new IOException("Cluster frame before HELLO");
+                }
+                handle(node, state, type, first, second);
+            }
+        } catch (EOFException e) {
+            // The other node closed the link
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Cluster link from {} failed: {}", node != null ? node : channel, e.getMessage());
+        } finally {
+            if (node != null && nodes.remove(node, state)) {
+                Log.info("Cluster node {} left, {} users gone", node, state.users.size());
+                for (ClusterLink link : links) {
+                    if (link.getPeer().name().equals(node)) {
+                        link.reset();
+                    }
+                }
+                updateRing();
+            }
+        }
+    }
+
+    private void handle(String node, NodeState state, byte type, String first, String second) {
+        switch (type) {
+            case ROOM_MESSAGE, ROOM_NOTICE -> deliverLocally(first, second, type == ROOM_MESSAGE);
+            case ROUTE_MESSAGE, ROUTE_NOTICE -> {
+                // Sent to us as the owner, even if our ring has moved on we pass it on once
+                boolean message = type == ROUTE_MESSAGE;
+                deliverLocally(first, second, message);
+                passOn(RoomManager.key(first), encode(message ? ROOM_MESSAGE : ROOM_NOTICE, first, second), node);
+            }
+            case MEMBER_JOIN -> state.rooms.computeIfAbsent(RoomManager.key(first), k -> ConcurrentHashMap.newKeySet()).add(second);
+            case MEMBER_LEAVE -> state.rooms.computeIfPresent(RoomManager.key(first), (k, members) -> {
+                members.remove(second);
+                return members.isEmpty() ? null : members;
+            });
+            case USER_ONLINE -> {
+                long claimed = Long.parseLong(second);
+                state.users.put(RoomManager.key(first), new RemoteUser(first, claimed));
+                settleNameConflict(node, first, claimed);
+            }
+            case USER_OFFLINE -> state.users.remove(RoomManager.key(first));
+            case PRIVATE -> {
+                ClientHandler recipient = server.findClientByUsername(first);
+                // A detached session gets it from the offline inbox when it is resumed
+                if (recipient != null && !recipient.isDetached()) {
+                    recipient.sendMessage(second);
+                } else if (server.offerOfflineMessage(first, second)) {
+                    // They may have resumed between the lookup and the offer
+                    server.deliverOfflineMessages(first);
+                }
+            }
+            default -> Log.warn("Unknown cluster frame type {} from {}", type, node);
+        }
+    }
+
+    // Rooms without members here have nobody to deliver to
+    private void deliverLocally(String roomName, String line, boolean keep) {
+        Room room = server.getRoomManager().findRoomByName(roomName);
+        if (room != null) {
+            room.deliverFromCluster(line, keep);
+        }
+    }
+
+    // Both nodes run the same comparison, so exactly one of them gives the name up
+    private void settleNameConflict(String node, String user, long remoteClaim) {
+        ClientHandler local = server.findClientByUsername(user);
+        Long localClaim = localClaims.get(RoomManager.key(user));
+        if (local == null || localClaim == null) {
+            return;
+        }
+        boolean remoteFirst = remoteClaim < localClaim || (remoteClaim == localClaim && node.compareTo(self.name()) < 0);
+        if (remoteFirst) {
+            local.loseUsername(user, node);
+        }
+    }
+
+    // ---- frames ----
+
+    // [int length][byte type][int length][UTF-8][int length][UTF-8], the length covers everything after it
+    static ByteBuffer encode(byte type, String first, String second) {
+        byte[] a = first.getBytes(StandardCharsets.UTF_8);
+        byte[] b = second.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 4 + a.length + 4 + b.length;
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length).put(type).putInt(a.length).put(a).putInt(b.length).put(b);
+        return frame.flip();
+    }
+
+    private static String readString(ByteBuffer frame) {
+        int length = frame.getInt();
+        String value = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return value;
+    }
+}
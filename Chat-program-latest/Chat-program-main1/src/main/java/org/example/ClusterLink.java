@@ -0,0 +1,146 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The outgoing half of the connection to one other node. Frames are only
+ * queued by the caller, one writer thread takes everything queued at once
+ * and sends it in one gathering write, so a busy room costs one syscall per
+ * batch rather than per message.
+ *
+ * The link reconnects by itself. Nothing is queued while it is down, the
+ * other node gets this node's whole state as the first frames after every
+ * connect instead, see Cluster.snapshot().
+ */
+public class ClusterLink {
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int MAX_BATCH = 256;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    // Wakes the writer after reset(), writing it to the closed channel fails
+    private static final ByteBuffer WAKE_UP = ByteBuffer.allocate(0);
+
+    private final Cluster.Member peer;
+    private final Supplier<List<ByteBuffer>> snapshot;
+    private final ArrayBlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private volatile boolean connected;
+    private volatile SocketChannel channel;
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public ClusterLink(Cluster.Member peer, Supplier<List<ByteBuffer>> snapshot) {
+        this.peer = peer;
+        this.snapshot = snapshot;
+    }
+
+    public void start() {
+        Thread.ofVirtual().name("cluster-link-" + peer.name()).start(this::run);
+    }
+
+    // The frame is shared between links, each gets its own view of it
+    public void send(ByteBuffer frame) {
+        if (!connected) {
+            return;
+        }
+        if (!queue.offer(frame.duplicate())) {
+            dropped.increment();
+        }
+    }
+
+    private void run() {
+        long backoff = 100;
+        while (true) {
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(peer.host(), peer.port()))) {
+                channel.socket().setTcpNoDelay(true);
+                this.channel = channel;
+                // From here on frames are queued, so nothing that happens after the snapshot is missed
+                connected = true;
+                Log.info("Cluster link to {} is up", peer.name());
+                backoff = 100;
+                write(channel, snapshot.get());
+                List<ByteBuffer> batch = new ArrayList<>(MAX_BATCH);
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    write(channel, batch);
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                if (connected) {
+                    Log.warn("Cluster link to {} is down: {}", peer.name(), e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                connected = false;
+                queue.clear();
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    /**
+     * Drops the connection and starts over. Called when the other node's link
+     * to us broke: it has most likely restarted, and a write to the old
+     * connection could still look fine and be lost.
+     */
+    public void reset() {
+        SocketChannel current = channel;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // Handle quietly
+            }
+            queue.offer(WAKE_UP);
+        }
+    }
+
+    private void write(SocketChannel channel, List<ByteBuffer> frames) throws IOException {
+        if (frames.isEmpty()) {
+            return;
+        }
+        ByteBuffer[] buffers = frames.toArray(new ByteBuffer[0]);
+        ByteBuffer last = buffers[buffers.length - 1];
+        do {
+            channel.write(buffers);
+        } while (last.hasRemaining());
+        framesSent.add(buffers.length);
+        batches.increment();
+    }
+
+    public Cluster.Member getPeer() {
+        return peer;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public long getFramesSent() {
+        return framesSent.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    // Frames lost because the queue was full
+    public long getDropped() {
+        return dropped.sum();
+    }
+}
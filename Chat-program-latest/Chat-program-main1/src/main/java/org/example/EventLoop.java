@@ -0,0 +1,159 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread serving many non-blocking connections.
+ * Work coming from other threads (new channels, writes from a broadcast in
+ * another loop) is handed over through the task queue and run on this thread.
+ */
+public class EventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    // Set on every event loop thread, whichever loop it is
+    private static final ThreadLocal<Boolean> ON_EVENT_LOOP = ThreadLocal.withInitial(() -> false);
+
+    private final Selector selector;
+    private final Server server;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Delayed tasks, only touched on this thread
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(Timer::dueNanos));
+    // Shared by every connection on this loop, the decoders copy what they need
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile Thread thread;
+
+    public EventLoop(Server server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection connection = new NioConnection(channel, key, this, server.getConfig());
+                ClientHandler handler = new ClientHandler(connection, server);
+                connection.setHandler(handler);
+                key.attach(connection);
+                handler.start();
+            } catch (IOException e) {
+                Log.warn("Failed to register channel: {}", e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Handle quietly
+                }
+            }
+        });
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    private record Timer(long dueNanos, Runnable task) {
+    }
+
+    // Must be called on this loop, runs the task here once the delay is over
+    public void schedule(Runnable task, long delayNanos) {
+        timers.add(new Timer(System.nanoTime() + delayNanos, task));
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // True on any event loop, not only this one. Such a thread must never wait for a connection of another loop.
+    public static boolean onEventLoop() {
+        return ON_EVENT_LOOP.get();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        ON_EVENT_LOOP.set(true);
+        while (!thread.isInterrupted()) {
+            try {
+                Timer next = timers.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    // Rounded up, waking a little late is fine, spinning until the timer is due is not
+                    long waitMillis = (next.dueNanos() - System.nanoTime() + 999_999) / 1_000_000;
+                    if (waitMillis > 0) {
+                        selector.select(waitMillis);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+                processSelectedKeys();
+                runTasks();
+                runTimers();
+            } catch (IOException e) {
+                Log.error("Event loop error: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            NioConnection connection = (NioConnection) key.attachment();
+            if (connection == null) {
+                continue;
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.onReadable(readBuffer);
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        Timer timer;
+        while ((timer = timers.peek()) != null && timer.dueNanos() - now <= 0) {
+            timers.poll();
+            try {
+                timer.task().run();
+            } catch (RuntimeException e) {
+                Log.error("Event loop task failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void runTasks() {
+        // Only run what is queued now, tasks added meanwhile wait for the next round
+        int pending = tasks.size();
+        for (int i = 0; i < pending; i++) {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                break;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error("Event loop task failed: {}", e.getMessage());
+            }
+        }
+        if (!tasks.isEmpty()) {
+            selector.wakeup();
+        }
+    }
+}
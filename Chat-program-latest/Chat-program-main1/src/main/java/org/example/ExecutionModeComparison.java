@@ -0,0 +1,192 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load comparison between the THREAD and VIRTUAL server modes, run in one JVM.
+ *
+ * Idle phase: opens many logged-in connections that never send anything and
+ * reports live platform threads and heap growth on the server side.
+ * Active phase: a smaller number of clients each send TEXT lines and wait for
+ * the server reply before sending the next one, reporting lines/sec and latency.
+ *
+ * Eksempel:
+ * java org.example.ExecutionModeComparison 10000 1000 50
+ *
+ * Each idle connection needs two file descriptors (client and server end),
+ * so raise "ulimit -n" above twice the idle count first.
+ */
+public class ExecutionModeComparison {
+
+    public static void main(String[] args) throws Exception {
+        int idleConnections = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int activeClients = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        int messagesPerClient = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        PrintStream console = System.out;
+        // The server logs connects and resets, keep that out of the report
+        Log.setLevel(Log.Level.OFF);
+
+        console.printf("%-8s %-7s %8s %14s %14s %12s %10s %10s%n",
+                "mode", "phase", "clients", "setup ms", "threads", "heap MB", "lines/s", "p99 us");
+        for (ServerConfig.Mode mode : new ServerConfig.Mode[]{ServerConfig.Mode.THREAD, ServerConfig.Mode.VIRTUAL}) {
+            runIdle(console, mode, idleConnections);
+            runActive(console, mode, activeClients, messagesPerClient);
+        }
+    }
+
+    private static void runIdle(PrintStream console, ServerConfig.Mode mode, int connections) throws Exception {
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        try (RunningServer running = new RunningServer(mode)) {
+            long start = System.nanoTime();
+            List<SocketChannel> channels = new ArrayList<>(connections);
+            try {
+                for (int i = 0; i < connections; i++) {
+                    SocketChannel channel = SocketChannel.open(running.address());
+                    channel.write(ByteBuffer.wrap(("idle" + i + "\n").getBytes(StandardCharsets.UTF_8)));
+                    channels.add(channel);
+                }
+                running.awaitClients(connections);
+                long setupMs = (System.nanoTime() - start) / 1_000_000;
+
+                int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+                long heapMb = (usedHeap() - heapBefore) / (1024 * 1024);
+                console.printf("%-8s %-7s %8d %14d %14d %12d %10s %10s%n",
+                        mode, "idle", connections, setupMs, threads, heapMb, "-", "-");
+            } finally {
+                for (SocketChannel channel : channels) {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    private static void runActive(PrintStream console, ServerConfig.Mode mode, int clients, int messages) throws Exception {
+        try (RunningServer running = new RunningServer(mode);
+             ExecutorService load = Executors.newVirtualThreadPerTaskExecutor()) {
+            long start = System.nanoTime();
+            List<Future<long[]>> results = new ArrayList<>(clients);
+            for (int i = 0; i < clients; i++) {
+                String name = "active" + i;
+                results.add(load.submit(() -> activeClient(running.address(), name, messages)));
+            }
+
+            long[] all = new long[clients * messages];
+            int n = 0;
+            for (Future<long[]> result : results) {
+                long[] latencies = result.get();
+                System.arraycopy(latencies, 0, all, n, latencies.length);
+                n += latencies.length;
+            }
+            long elapsed = System.nanoTime() - start;
+            Arrays.sort(all, 0, n);
+            long p99Micros = n == 0 ? 0 : all[(int) Math.min(n - 1, Math.ceil(n * 0.99) - 1)] / 1_000;
+            long linesPerSec = n * 1_000_000_000L / Math.max(1, elapsed);
+            console.printf("%-8s %-7s %8d %14d %14s %12s %10d %10d%n",
+                    mode, "active", clients, elapsed / 1_000_000, "-", "-", linesPerSec, p99Micros);
+        }
+    }
+
+    // Sends TEXT lines one at a time and waits for the server's answer to each
+    private static long[] activeClient(InetSocketAddress address, String name, int messages) throws IOException {
+        long[] latencies = new long[messages];
+        try (Socket socket = new Socket(address.getHostString(), address.getPort())) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+            writer.println(name);
+            for (int i = 0; i < messages; i++) {
+                String payload = name + "-" + i;
+                long sent = System.nanoTime();
+                writer.println(Message.ofNow(name, Message.MessageType.TEXT, payload).toLine());
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.equals("[You]: " + payload) || line.startsWith("You are not in any room")) {
+                        break;
+                    }
+                }
+                latencies[i] = System.nanoTime() - sent;
+            }
+        }
+        return latencies;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // A Server on an ephemeral port with its own RoomManager, stopped on close()
+    private static class RunningServer implements AutoCloseable {
+        // Without rate limits, the active phase is meant to push as many lines as the server takes
+        private final Server server = new Server(ServerConfig.fromArgs(new String[]{"--client-rate=0", "--room-rate=0"}));
+        private final ServerSocketChannel serverChannel;
+        private final ExecutorService executor;
+        private final Thread acceptThread;
+
+        RunningServer(ServerConfig.Mode mode) throws IOException {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress("localhost", 0), 4096);
+            executor = Server.createExecutor(mode);
+            acceptThread = new Thread(() -> {
+                try {
+                    server.serveBlocking(serverChannel, executor);
+                } catch (IOException e) {
+                    System.err.println("Accept failed: " + e.getMessage());
+                }
+            }, "comparison-accept");
+            acceptThread.start();
+        }
+
+        InetSocketAddress address() throws IOException {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        }
+
+        void awaitClients(int count) throws InterruptedException {
+            while (server.getClientCount() < count) {
+                Thread.sleep(10);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverChannel.close();
+            try {
+                acceptThread.join();
+                // Handlers finish on their own once the client ends are closed
+                long deadline = System.currentTimeMillis() + 10_000;
+                while (server.getClientCount() > 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdownNow();
+                // Its timers would otherwise count as live threads in the next mode's report
+                server.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package org.example;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams files between two clients over separate data connections, so the
+ * chat connections never carry file bytes and chat keeps flowing during a transfer.
+ *
+ * FILE_TRANSFER on the chat connection only registers an offer and hands out
+ * a token. The sender then connects to the file port and writes
+ * "UPLOAD <token>\n" followed by the raw bytes, the recipient connects and
+ * writes "DOWNLOAD <token>\n" and reads them. The server pumps the bytes from
+ * one socket to the other through a pooled direct buffer, so a file is never
+ * held on the heap whatever its size, and each transfer is capped at the
+ * configured rate. Every data connection runs on its own virtual thread,
+ * whichever mode the chat server uses.
+ *
+ * A file for a room is not relayed live to every member. The upload is
+ * spooled once into the FileStore, the room only gets a reference with the
+ * file's hash, and each member downloads it with "FETCH <hash>\n" whenever
+ * they like, sent straight from the file with transferTo. The reference only
+ * goes to the members on this node, since only this node's store has the
+ * file, and it is not kept in the room's history, since the store may evict
+ * the file. Members who join later are sent the references whose files are
+ * still stored.
+ */
+public class FileRelay {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_LENGTH = 128;
+
+    public static final String UPLOAD = "UPLOAD";
+    public static final String DOWNLOAD = "DOWNLOAD";
+    public static final String FETCH = "FETCH";
+    // Shares offered to members who join later, per room
+    private static final int SHARES_KEPT = 20;
+
+    // A "#FILE SHARED" line and the hash it points at
+    private record Share(String hash, String line) {
+    }
+
+    // One offered file, waiting for both data connections
+    private static final class Transfer {
+        final String token;
+        final String sender;
+        final String recipient;
+        // Set when the file is shared in a room, then it is spooled instead of relayed
+        final Room room;
+        final String fileName;
+        final long size;
+        final CompletableFuture<SocketChannel> downloader = new CompletableFuture<>();
+        final AtomicBoolean uploaderArrived = new AtomicBoolean();
+        // Taken by whoever gets there first: the uploader starting the relay or the expiry timer
+        final AtomicBoolean claimed = new AtomicBoolean();
+
+        Transfer(String token, String sender, String recipient, Room room, String fileName, long size) {
+            this.token = token;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.room = room;
+            this.fileName = fileName;
+            this.size = size;
+        }
+    }
+
+    private final Server server;
+    private final ServerConfig config;
+    private final long bytesPerSecond;
+    private final long maxFileBytes;
+    private final long offerTimeoutMillis;
+    private final Map<String, Transfer> transfers = new ConcurrentHashMap<>();
+    // Weak keys, a room that is removed takes its shares with it
+    private final Map<Room, ArrayDeque<Share>> shares = Collections.synchronizedMap(new WeakHashMap<>());
+    // Direct buffers are slow to allocate and only freed by the GC, so they are reused between transfers
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final SecureRandom random = new SecureRandom();
+    // Both only exist once listen() has run, a server without a file port has no timer thread
+    private volatile ScheduledExecutorService timer;
+    private volatile ServerSocketChannel serverChannel;
+    private volatile int port = -1;
+    private volatile FileStore store;
+
+    public FileRelay(Server server, ServerConfig config) {
+        this.server = server;
+        this.config = config;
+        this.bytesPerSecond = config.getFileRateKbPerSecond() * 1024;
+        this.maxFileBytes = config.getFileMaxMb() * 1024 * 1024;
+        this.offerTimeoutMillis = TimeUnit.SECONDS.toMillis(config.getFileOfferTimeoutSeconds());
+    }
+
+    // Opens the file store, binds the file port and accepts data connections on a virtual thread
+    public void listen(int port) throws IOException {
+        this.store = new FileStore(Path.of(config.getFileStoreDir()), config.getFileStoreMaxMb() * 1024 * 1024);
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        this.serverChannel = serverChannel;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "file-offer-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.port = port;
+        Thread.ofVirtual().name("file-relay-accept").start(() -> {
+            try {
+                while (true) {
+                    SocketChannel channel = serverChannel.accept();
+                    Thread.ofVirtual().start(() -> handle(channel));
+                }
+            } catch (ClosedChannelException e) {
+                // Server was stopped
+            } catch (IOException e) {
+                Log.error("File relay stopped: {}", e.getMessage());
+            }
+        });
+        Log.info("File relay listening on port {}", port);
+    }
+
+    public boolean isListening() {
+        return port > 0;
+    }
+
+    // Stops accepting data connections and expiring offers, transfers already running finish on their own
+    public void close() {
+        port = -1;
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                Log.warn("Could not close the file port: {}", e.getMessage());
+            }
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public long getMaxFileBytes() {
+        return maxFileBytes;
+    }
+
+    public int getActiveTransfers() {
+        return active.get();
+    }
+
+    public FileStore getStore() {
+        return store;
+    }
+
+    // Registers a file offer and returns the token both sides use on the file port
+    public String offer(String sender, String recipient, String fileName, long size) {
+        return register(new Transfer(newToken(), sender, recipient, null, fileName, size));
+    }
+
+    // Same for a file shared in a room, only the sender uses the token
+    public String offerToRoom(String sender, Room room, String fileName, long size) {
+        return register(new Transfer(newToken(), sender, "room " + room.getRoomName(), room, fileName, size));
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    private String register(Transfer transfer) {
+        transfers.put(transfer.token, transfer);
+        timer.schedule(() -> expire(transfer), offerTimeoutMillis, TimeUnit.MILLISECONDS);
+        return transfer.token;
+    }
+
+    private void expire(Transfer transfer) {
+        if (!transfer.claimed.compareAndSet(false, true)) {
+            return;
+        }
+        transfers.remove(transfer.token, transfer);
+        // Whoever is still parked on this offer is let go
+        if (!transfer.downloader.cancel(false)) {
+            closeQuietly(transfer.downloader.join());
+        }
+        notify(transfer.sender, "File '" + transfer.fileName + "' to " + transfer.recipient + " expired before it was sent");
+    }
+
+    private void handle(SocketChannel channel) {
+        try {
+            String header = readHeader(channel);
+            int space = header.indexOf(' ');
+            String verb = space < 0 ? header : header.substring(0, space);
+            if (verb.equals(FETCH) && space > 0) {
+                fetch(channel, header.substring(space + 1).trim());
+                return;
+            }
+            Transfer transfer = space < 0 ? null : transfers.get(header.substring(space + 1).trim());
+            if (transfer == null) {
+                closeQuietly(channel);
+                return;
+            }
+            if (verb.equals(DOWNLOAD)) {
+                // Parked until the uploader picks it up, or closed by expire()
+                if (!transfer.downloader.complete(channel)) {
+                    closeQuietly(channel);
+                }
+            } else if (verb.equals(UPLOAD) && transfer.uploaderArrived.compareAndSet(false, true)) {
+                if (transfer.room != null) {
+                    spool(transfer, channel);
+                } else {
+                    upload(transfer, channel);
+                }
+            } else {
+                closeQuietly(channel);
+            }
+        } catch (IOException e) {
+            closeQuietly(channel);
+        }
+    }
+
+    // Runs on the uploader's thread: waits for the recipient, then relays every byte
+    private void upload(Transfer transfer, SocketChannel upstream) {
+        SocketChannel downstream = null;
+        try {
+            downstream = transfer.downloader.get(offerTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | CancellationException e) {
+            // Recipient never connected
+        }
+        if (downstream == null || !transfer.claimed.compareAndSet(false, true)) {
+            closeQuietly(upstream);
+            closeQuietly(downstream);
+            return;
+        }
+        transfers.remove(transfer.token, transfer);
+
+        active.incrementAndGet();
+        ByteBuffer buffer = takeBuffer();
+        long start = System.nanoTime();
+        try {
+            copy(upstream, downstream, transfer.size, buffer, null);
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            notify(transfer.sender, "File '" + transfer.fileName + "' sent to " + transfer.recipient
+                    + " (" + transfer.size + " bytes in " + millis + " ms)");
+        } catch (IOException e) {
+            notify(transfer.sender, "File '" + transfer.fileName + "' to " + transfer.recipient + " failed: " + e.getMessage());
+            notify(transfer.recipient, "File '" + transfer.fileName + "' from " + transfer.sender + " failed: " + e.getMessage());
+        } finally {
+            buffers.offer(buffer);
+            active.decrementAndGet();
+            closeQuietly(upstream);
+            closeQuietly(downstream);
+        }
+    }
+
+    // Runs on the uploader's thread: writes the upload to a spool file, stores it and tells the room
+    private void spool(Transfer transfer, SocketChannel upstream) {
+        if (!transfer.claimed.compareAndSet(false, true)) {
+            closeQuietly(upstream);
+            return;
+        }
+        transfers.remove(transfer.token, transfer);
+
+        active.incrementAndGet();
+        ByteBuffer buffer = takeBuffer();
+        Path spoolFile = null;
+        try {
+            spoolFile = store.newSpoolFile();
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            try (FileChannel out = FileChannel.open(spoolFile, StandardOpenOption.WRITE)) {
+                copy(upstream, out, transfer.size, buffer, sha256);
+            }
+            String hash = store.commit(spoolFile, sha256.digest());
+            spoolFile = null;
+
+            // The room only gets the reference, members fetch the bytes themselves
+            ClientHandler sender = server.findClientByUsername(transfer.sender);
+            transfer.room.broadcastToRoom("[" + transfer.sender + " shared '" + transfer.fileName + "' ("
+                    + transfer.size + " bytes), /get " + transfer.fileName + " to download it]", sender);
+            Share share = new Share(hash, "#FILE SHARED " + port + " " + hash + " " + transfer.size + " " + transfer.fileName);
+            transfer.room.deliverLocalNotice(share.line(), sender);
+            remember(transfer.room, share);
+            notify(transfer.sender, "File '" + transfer.fileName + "' shared in " + transfer.recipient);
+        } catch (IOException e) {
+            notify(transfer.sender, "File '" + transfer.fileName + "' to " + transfer.recipient + " failed: " + e.getMessage());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        } finally {
+            if (spoolFile != null) {
+                store.discard(spoolFile);
+            }
+            buffers.offer(buffer);
+            active.decrementAndGet();
+            closeQuietly(upstream);
+        }
+    }
+
+    // Sends a stored file with transferTo, so the bytes go from the page cache to the socket without a copy
+    private void fetch(SocketChannel downstream, String hash) throws IOException {
+        active.incrementAndGet();
+        try (FileChannel file = store.open(hash)) {
+            if (file == null) {
+                return;
+            }
+            long size = file.size();
+            long start = System.nanoTime();
+            long sent = 0;
+            while (sent < size) {
+                // Smaller steps when capped, so the pauses stay short
+                long step = bytesPerSecond > 0 ? CHUNK_SIZE : size - sent;
+                sent += file.transferTo(sent, Math.min(step, size - sent), downstream);
+                throttle(start, sent);
+            }
+        } finally {
+            active.decrementAndGet();
+            closeQuietly(downstream);
+        }
+    }
+
+    /**
+     * Copies exactly size bytes, one chunk at a time. With a direct buffer the
+     * socket reads and writes go straight to native memory, nothing is copied
+     * through the heap. A spooled upload is hashed on the way through.
+     */
+    private void copy(ReadableByteChannel upstream, WritableByteChannel downstream, long size,
+                      ByteBuffer buffer, MessageDigest digest) throws IOException {
+        long start = System.nanoTime();
+        long sent = 0;
+        while (sent < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - sent));
+            int n = upstream.read(buffer);
+            if (n < 0) {
+                throw new EOFException("sender closed after " + sent + " of " + size + " bytes");
+            }
+            buffer.flip();
+            if (digest != null) {
+                buffer.mark();
+                digest.update(buffer);
+                buffer.reset();
+            }
+            while (buffer.hasRemaining()) {
+                downstream.write(buffer);
+            }
+            sent += n;
+            throttle(start, sent);
+        }
+    }
+
+    // Sleeps until sent bytes since start are back under the rate cap, so a transfer never uses more than its share
+    private void throttle(long start, long sent) {
+        if (bytesPerSecond > 0) {
+            long due = start + (long) (sent * 1e9 / bytesPerSecond);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    // "UPLOAD <token>" or "DOWNLOAD <token>", read a byte at a time so no file bytes are read with it
+    private static String readHeader(SocketChannel channel) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        byte[] line = new byte[MAX_HEADER_LENGTH];
+        int length = 0;
+        while (true) {
+            one.clear();
+            if (channel.read(one) < 0) {
+                throw new EOFException("closed before header");
+            }
+            byte b = one.get(0);
+            if (b == '\n') {
+                break;
+            }
+            if (length == line.length) {
+                throw new IOException("header too long");
+            }
+            line[length++] = b;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(CHUNK_SIZE);
+    }
+
+    private void remember(Room room, Share share) {
+        synchronized (shares) {
+            ArrayDeque<Share> recent = shares.computeIfAbsent(room, r -> new ArrayDeque<>());
+            recent.removeIf(s -> s.hash().equals(share.hash()));
+            recent.addLast(share);
+            if (recent.size() > SHARES_KEPT) {
+                recent.removeFirst();
+            }
+        }
+    }
+
+    // For a member who just joined: the room's recent shares whose files the store still has
+    public void replayShares(ClientHandler client, Room room) {
+        FileStore store = this.store;
+        if (store == null) {
+            return;
+        }
+        List<Share> recent;
+        synchronized (shares) {
+            ArrayDeque<Share> kept = shares.get(room);
+            if (kept == null) {
+                return;
+            }
+            recent = new ArrayList<>(kept);
+        }
+        for (Share share : recent) {
+            if (store.contains(share.hash())) {
+                client.sendMessage(share.line());
+            }
+        }
+    }
+
+    private void notify(String username, String line) {
+        ClientHandler client = server.findClientByUsername(username);
+        if (client != null) {
+            client.sendMessage(line);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Handle quietly
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed file store on disk for files shared in a room.
+ *
+ * A file is spooled once and stored under the SHA-256 of its bytes, so
+ * uploading the same file again only refreshes the existing copy. Members
+ * fetch it when they like, each at their own speed, so the sender never
+ * waits for the slowest downloader. When the store grows past its size
+ * limit the least recently used files are deleted.
+ */
+public class FileStore {
+    private static final String PART_SUFFIX = ".part";
+
+    private static final class Entry {
+        final long size;
+        volatile long lastUsedMillis;
+
+        Entry(long size, long lastUsedMillis) {
+            this.size = size;
+            this.lastUsedMillis = lastUsedMillis;
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong dedupHits = new AtomicLong();
+
+    public FileStore(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        load();
+    }
+
+    // Picks up the files from an earlier run, spool files that never finished are deleted
+    private void load() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(PART_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                } else if (isHash(name)) {
+                    long size = Files.size(file);
+                    entries.put(name, new Entry(size, Files.getLastModifiedTime(file).toMillis()));
+                    totalBytes.addAndGet(size);
+                }
+            }
+        }
+    }
+
+    // New spool file for an upload, handed back to commit() or discard() when the upload ends
+    public Path newSpoolFile() throws IOException {
+        return Files.createTempFile(directory, "upload-", PART_SUFFIX);
+    }
+
+    /**
+     * Moves a finished spool file in under its hash. If the store already has
+     * that content the spool file is dropped and the stored copy is kept.
+     * Returns the hash, which is what members fetch the file by.
+     */
+    public String commit(Path spoolFile, byte[] sha256) throws IOException {
+        String hash = HexFormat.of().formatHex(sha256);
+        long size = Files.size(spoolFile);
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Entry existing = entries.get(hash);
+            if (existing != null) {
+                existing.lastUsedMillis = now;
+                dedupHits.incrementAndGet();
+                Files.deleteIfExists(spoolFile);
+                return hash;
+            }
+            Files.move(spoolFile, directory.resolve(hash), StandardCopyOption.ATOMIC_MOVE);
+            entries.put(hash, new Entry(size, now));
+            totalBytes.addAndGet(size);
+            evict(hash);
+        }
+        return hash;
+    }
+
+    public void discard(Path spoolFile) {
+        try {
+            Files.deleteIfExists(spoolFile);
+        } catch (IOException e) {
+            // Handle quietly, load() cleans it up at the next start
+        }
+    }
+
+    /**
+     * Opens a stored file for reading, null if there is no such file (any more).
+     * The file stays readable through the channel even if it is evicted meanwhile,
+     * the OS only frees it once the last reader closes it.
+     */
+    public synchronized FileChannel open(String hash) throws IOException {
+        Entry entry = isHash(hash) ? entries.get(hash) : null;
+        if (entry == null) {
+            return null;
+        }
+        entry.lastUsedMillis = System.currentTimeMillis();
+        return FileChannel.open(directory.resolve(hash), StandardOpenOption.READ);
+    }
+
+    // False once the file has been evicted
+    public boolean contains(String hash) {
+        return entries.containsKey(hash);
+    }
+
+    // Least recently used first, until the store fits again. The file just added is never the one to go.
+    private void evict(String keep) {
+        if (totalBytes.get() <= maxBytes) {
+            return;
+        }
+        List<Map.Entry<String, Entry>> oldest = new ArrayList<>(entries.entrySet());
+        oldest.sort(Comparator.comparingLong(e -> e.getValue().lastUsedMillis));
+        for (Map.Entry<String, Entry> e : oldest) {
+            if (totalBytes.get() <= maxBytes) {
+                break;
+            }
+            if (e.getKey().equals(keep)) {
+                continue;
+            }
+            entries.remove(e.getKey());
+            totalBytes.addAndGet(-e.getValue().size);
+            try {
+                Files.deleteIfExists(directory.resolve(e.getKey()));
+            } catch (IOException ex) {
+                Log.warn("Could not delete {} from the file store: {}", e.getKey(), ex.getMessage());
+            }
+        }
+    }
+
+    public int getFileCount() {
+        return entries.size();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    // Uploads that turned out to be a file the store already had
+    public long getDedupHits() {
+        return dedupHits.get();
+    }
+
+    private static boolean isHash(String name) {
+        if (name.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,65 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Collects queued frames for one connection and writes them with a single
+ * gathering write, so a burst of lines costs one syscall instead of one each.
+ * Frames that were only partly written stay here until the next write.
+ */
+public class GatheringWriter {
+    private final ByteBuffer[] frames;
+    private int start;
+    private int end;
+
+    public GatheringWriter(int maxFrames) {
+        this.frames = new ByteBuffer[maxFrames];
+    }
+
+    public boolean hasPending() {
+        return start < end;
+    }
+
+    public boolean isFull() {
+        return end == frames.length;
+    }
+
+    public void add(ByteBuffer frame) {
+        frames[end++] = frame;
+    }
+
+    // Moves as many frames as fit from the queue, returns how many were taken
+    public int fillFrom(OutboundQueue queue) {
+        int taken = 0;
+        ByteBuffer frame;
+        while (!isFull() && (frame = queue.poll()) != null) {
+            add(frame);
+            taken++;
+        }
+        return taken;
+    }
+
+    // One write call for everything pending. Returns the bytes written.
+    public long writeTo(GatheringByteChannel channel, OutboundQueue stats) throws IOException {
+        long written = channel.write(frames, start, end - start);
+        stats.recordWrite(written);
+        while (start < end && !frames[start].hasRemaining()) {
+            frames[start++] = null;
+        }
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+        return written;
+    }
+
+    public void clear() {
+        for (int i = start; i < end; i++) {
+            frames[i] = null;
+        }
+        start = 0;
+        end = 0;
+    }
+}
@@ -0,0 +1,80 @@
+package org.example;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring that gives every room one owning node.
+ *
+ * Each node gets POINTS_PER_NODE points on a 64-bit ring, and a room belongs
+ * to the node of the first point at or after the hash of its name. When a
+ * node comes or goes only the rooms next to its points change owner, about
+ * 1/n of them, every other room keeps the node it had.
+ *
+ * A ring never changes, the cluster builds a new one when the set of
+ * reachable nodes changes. Every node builds it from the same names, so they
+ * all agree on the owners once they see the same nodes.
+ */
+public final class HashRing {
+    static final int POINTS_PER_NODE = 128;
+
+    private final List<String> nodes;
+    // Sorted, owners[i] has the point points[i]
+    private final long[] points;
+    private final String[] owners;
+
+    public HashRing(Collection<String> nodeNames) {
+        TreeSet<String> sorted = new TreeSet<>(nodeNames);
+        if (sorted.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one node");
+        }
+        this.nodes = List.copyOf(sorted);
+        int count = nodes.size() * POINTS_PER_NODE;
+        long[][] pairs = new long[count][];
+        int i = 0;
+        for (int n = 0; n < nodes.size(); n++) {
+            for (int p = 0; p < POINTS_PER_NODE; p++) {
+                pairs[i++] = new long[]{hash(nodes.get(n) + "#" + p), n};
+            }
+        }
+        // Ties are next to impossible, the node order keeps them the same on every node anyway
+        Arrays.sort(pairs, (x, y) -> x[0] != y[0] ? Long.compare(x[0], y[0]) : Long.compare(x[1], y[1]));
+        this.points = new long[count];
+        this.owners = new String[count];
+        for (i = 0; i < count; i++) {
+            points[i] = pairs[i][0];
+            owners[i] = nodes.get((int) pairs[i][1]);
+        }
+    }
+
+    // key is a room key, see RoomManager.key()
+    public String ownerOf(String key) {
+        int at = Arrays.binarySearch(points, hash(key));
+        if (at < 0) {
+            at = -at - 1;
+        }
+        return owners[at == points.length ? 0 : at];
+    }
+
+    // Sorted by name
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    // FNV-1a over the chars, then a 64-bit finalizer so near-identical names land far apart
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
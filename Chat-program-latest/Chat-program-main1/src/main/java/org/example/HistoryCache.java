@@ -0,0 +1,281 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Recent history of every room, kept in memory in front of the MessageLog.
+ *
+ * Each room has a small ring of the SharedFrames it last broadcast, the
+ * same encoded frames the members got, so a join is answered from memory
+ * and replayed as one write. All rings share one memory budget: when it
+ * is exceeded the rings of the rooms that have been quiet the longest are
+ * dropped, and those rooms fall back to the disk log until their ring has
+ * filled up again. The broadcast that goes over the budget only asks for
+ * that, the dropping itself runs on the evictor, off the message path.
+ *
+ * A ring can only answer a join if it holds the last replay-count messages,
+ * or if it has seen every message the room ever had.
+ *
+ * A ring may hold more frames than a join replays: a resumed session gets
+ * every numbered frame it missed from it, see since().
+ */
+public class HistoryCache {
+    // Rough cost of one cached frame besides the line itself: the frame, its buffers and the ring slot
+    private static final int FRAME_OVERHEAD = 96;
+
+    // The recent frames of one room, guarded by its own lock
+    static final class Ring {
+        final SharedFrame[] frames;
+        final int[] sizes;
+        int head;
+        int count;
+        long bytes;
+        // Every message of the room went through this ring, so fewer than capacity is still all of them
+        boolean complete;
+        boolean evicted;
+        volatile long lastUsedNanos = System.nanoTime();
+
+        Ring(int capacity, boolean complete) {
+            this.frames = new SharedFrame[capacity];
+            this.sizes = new int[capacity];
+            this.complete = complete;
+        }
+    }
+
+    private final int replay;
+    private final int capacity;
+    private final long budgetBytes;
+    // Null when the message log is turned off, then the rings are all the history there is
+    private final MessageLog log;
+    private final AtomicLong bytes = new AtomicLong();
+    private final Set<Room> cachedRooms = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock evicting = new ReentrantLock();
+    // Set while an eviction is asked for or running, so a busy room asks only once
+    private final AtomicBoolean evictionPending = new AtomicBoolean();
+    // Null runs the eviction on the thread that went over the budget
+    private final Executor evictor;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // For a cache nobody else runs the eviction for, see the constructor below
+    public HistoryCache(int replay, long budgetBytes, MessageLog log) {
+        this(replay, replay, budgetBytes, log, null);
+    }
+
+    // capacity is the frames kept per room, a join replays the last replay of them
+    public HistoryCache(int replay, int capacity, long budgetBytes, MessageLog log, Executor evictor) {
+        this.replay = replay;
+        this.capacity = Math.max(replay, capacity);
+        this.budgetBytes = budgetBytes;
+        this.log = log;
+        this.evictor = evictor;
+    }
+
+    /**
+     * Called for every broadcast, keeps the frame in the room's ring and
+     * queues the line for the disk log. Never touches the disk itself.
+     */
+    public void record(Room room, String line, SharedFrame frame) {
+        if (capacity > 0) {
+            int size = FRAME_OVERHEAD + 3 * line.length();
+            while (!addToRing(room, frame, size)) {
+                // The ring was evicted under us, the room gets a new one
+            }
+            if (bytes.get() > budgetBytes && evictionPending.compareAndSet(false, true)) {
+                if (evictor != null) {
+                    evictor.execute(this::evictColdest);
+                } else {
+                    evictColdest();
+                }
+            }
+        }
+        if (log != null) {
+            log.append(room.getHistoryKey(), line);
+        }
+    }
+
+    private boolean addToRing(Room room, SharedFrame frame, int size) {
+        Ring ring = room.historyRing();
+        if (ring == null) {
+            // Checked before the line goes to the log, so only a room with no log at all starts complete
+            Ring created = new Ring(capacity, log == null || !log.hasHistory(room.getHistoryKey()));
+            ring = room.installHistoryRing(created);
+            if (ring == created) {
+                cachedRooms.add(room);
+            }
+        }
+        synchronized (ring) {
+            if (ring.evicted) {
+                return false;
+            }
+            int slot = (ring.head + ring.count) % capacity;
+            if (ring.count == capacity) {
+                // Full, the oldest frame makes room
+                ring.bytes -= ring.sizes[slot];
+                bytes.addAndGet(-ring.sizes[slot]);
+                ring.head = (ring.head + 1) % capacity;
+            } else {
+                ring.count++;
+            }
+            ring.frames[slot] = frame;
+            ring.sizes[slot] = size;
+            ring.bytes += size;
+            bytes.addAndGet(size);
+        }
+        ring.lastUsedNanos = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * The room's last messages as frames, oldest first. Comes from the ring
+     * when it can answer, otherwise from the disk log.
+     */
+    public List<SharedFrame> recent(Room room) {
+        List<SharedFrame> frames = new ArrayList<>();
+        if (replay == 0) {
+            return frames;
+        }
+        Ring ring = room.historyRing();
+        if (ring != null) {
+            synchronized (ring) {
+                if (!ring.evicted && (ring.count >= replay || ring.complete || log == null)) {
+                    for (int i = Math.max(0, ring.count - replay); i < ring.count; i++) {
+                        frames.add(ring.frames[(ring.head + i) % capacity]);
+                    }
+                    ring.lastUsedNanos = System.nanoTime();
+                    hits.increment();
+                    return frames;
+                }
+            }
+        }
+        misses.increment();
+        if (log != null) {
+            for (MessageLog.Entry entry : log.recent(room.getHistoryKey(), replay)) {
+                frames.add(SharedFrame.ofLine(entry.line(), false));
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * The frames numbered after seq, oldest first, for a resumed session.
+     * Only from memory, the disk log does not know the numbers, so the
+     * caller compares the first number with seq to see if anything is missing.
+     */
+    public List<SharedFrame> since(Room room, long seq) {
+        List<SharedFrame> frames = new ArrayList<>();
+        Ring ring = room.historyRing();
+        if (ring == null) {
+            return frames;
+        }
+        synchronized (ring) {
+            if (ring.evicted) {
+                return frames;
+            }
+            for (int i = 0; i < ring.count; i++) {
+                SharedFrame frame = ring.frames[(ring.head + i) % capacity];
+                if (frame.getSeq() > seq) {
+                    frames.add(frame);
+                }
+            }
+            ring.lastUsedNanos = System.nanoTime();
+        }
+        return frames;
+    }
+
+    // A room's ring as it was when the eviction started, the live lastUsedNanos keeps moving
+    private record Cold(long lastUsed, Room room, Ring ring) {
+    }
+
+    // Drops whole rings, quietest room first, until the cache is back under 90% of the budget
+    private void evictColdest() {
+        if (!evicting.tryLock()) {
+            evictionPending.set(false);
+            return;
+        }
+        try {
+            long target = budgetBytes / 10 * 9;
+            if (bytes.get() <= target) {
+                return;
+            }
+            List<Cold> copy = new ArrayList<>(cachedRooms.size());
+            for (Room room : cachedRooms) {
+                Ring ring = room.historyRing();
+                copy.add(new Cold(ring == null ? Long.MIN_VALUE : ring.lastUsedNanos, room, ring));
+            }
+            Cold[] rooms = copy.toArray(new Cold[0]);
+            Arrays.sort(rooms, Comparator.comparingLong(Cold::lastUsed));
+            for (Cold cold : rooms) {
+                if (bytes.get() <= target) {
+                    break;
+                }
+                Room room = cold.room();
+                Ring ring = cold.ring();
+                if (room.historyRing() != ring) {
+                    // Got a new ring since the copy was made, that one is not cold
+                    continue;
+                }
+                cachedRooms.remove(room);
+                if (ring == null) {
+                    continue;
+                }
+                synchronized (ring) {
+                    ring.evicted = true;
+                    bytes.addAndGet(-ring.bytes);
+                    ring.bytes = 0;
+                }
+                room.clearHistoryRing(ring);
+                evictions.increment();
+            }
+        } finally {
+            evicting.unlock();
+            evictionPending.set(false);
+        }
+    }
+
+    // Also called when a room itself is evicted
+    public void forget(Room room) {
+        cachedRooms.remove(room);
+        Ring ring = room.historyRing();
+        if (ring != null) {
+            synchronized (ring) {
+                ring.evicted = true;
+                bytes.addAndGet(-ring.bytes);
+                ring.bytes = 0;
+            }
+            room.clearHistoryRing(ring);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    // Rings dropped to stay within the budget
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public int getCachedRooms() {
+        return cachedRooms.size();
+    }
+}
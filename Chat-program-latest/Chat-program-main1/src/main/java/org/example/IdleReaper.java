@@ -0,0 +1,131 @@
+package org.example;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Finds connections that went quiet, with one hashed timer wheel for all of
+ * them instead of a timer per connection.
+ *
+ * Every handler sits in the slot of the tick when it next needs a look. A
+ * tick only takes out its own slot and asks each handler there what to do,
+ * see ClientHandler.checkIdle(): send a PING, close a dead connection, or
+ * nothing yet. The handler answers with when it wants the next look and is
+ * put into that slot. So a tick costs the handlers that are due, not all
+ * connections, and reading or writing costs nothing but a timestamp.
+ *
+ * Looks can be up to one tick late, and a deadline further out than the wheel
+ * reaches gets an extra look when the wheel comes round.
+ *
+ * PINGs and the read timeout only apply to clients that sent #HEARTBEAT
+ * before their username. Older clients would show the PING and never answer.
+ *
+ * Eksempel:
+ * java org.example.Server --heartbeat-s=15 --read-timeout-s=45 --write-timeout-s=30
+ */
+public class IdleReaper {
+    private static final Log.Limit REAP_LOG = Log.limit(Log.Level.INFO, 20);
+    // Power of two, with 1s ticks the wheel reaches about 8.5 minutes ahead
+    private static final int SLOTS = 512;
+    private static final int MASK = SLOTS - 1;
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Queue<ClientHandler>[] wheel;
+    private final long startNanos = System.nanoTime();
+    // The tick being handled now, only the reaper thread moves it
+    private volatile long tick;
+    private final LongAdder pings = new LongAdder();
+    private final LongAdder readTimeouts = new LongAdder();
+    private final LongAdder writeTimeouts = new LongAdder();
+    // Set by start()
+    private volatile Thread thread;
+
+    @SuppressWarnings("unchecked")
+    public IdleReaper() {
+        wheel = (Queue<ClientHandler>[]) new Queue<?>[SLOTS];
+        for (int i = 0; i < SLOTS; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    // Starts the wheel turning, kept out of the constructor so the thread never sees a half built reaper
+    public void start() {
+        Thread reaper = new Thread(this::run, "idle-reaper");
+        reaper.setDaemon(true);
+        thread = reaper;
+        reaper.start();
+    }
+
+    // Looks at the handler again at about atNanos (System.nanoTime), never in the tick running now
+    public void watch(ClientHandler handler, long atNanos) {
+        long current = tick;
+        long due = Math.ceilDiv(atNanos - startNanos, TICK_NANOS);
+        due = Math.min(Math.max(due, current + 1), current + SLOTS - 1);
+        wheel[(int) (due & MASK)].add(handler);
+    }
+
+    // Stops the wheel, the connections it watched are left as they are
+    public void close() {
+        Thread reaper = thread;
+        if (reaper != null) {
+            reaper.interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            long next = startNanos + (tick + 1) * TICK_NANOS;
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            }
+            tick++;
+            Queue<ClientHandler> slot = wheel[(int) (tick & MASK)];
+            long now = System.nanoTime();
+            // Handlers put back by watch() land in later slots, so this ends
+            ClientHandler handler;
+            while ((handler = slot.poll()) != null) {
+                try {
+                    long nextLook = handler.checkIdle(now);
+                    if (nextLook != 0) {
+                        watch(handler, nextLook);
+                    }
+                } catch (RuntimeException e) {
+                    Log.warn("Idle check failed for {}: {}", handler.getClientId(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    void pinged() {
+        pings.increment();
+    }
+
+    void reaped(ClientHandler handler, boolean reading, long idleNanos) {
+        (reading ? readTimeouts : writeTimeouts).increment();
+        if (REAP_LOG.allow()) {
+            REAP_LOG.log("Closing {}: nothing {} for {} s", handler.getUsername(),
+                    reading ? "read" : "written", TimeUnit.NANOSECONDS.toSeconds(idleNanos));
+        }
+    }
+
+    public long getPings() {
+        return pings.sum();
+    }
+
+    // Clients that sent nothing, not even a PONG, within the read timeout
+    public long getReadTimeouts() {
+        return readTimeouts.sum();
+    }
+
+    // Clients that did not take a single byte of what was queued for them within the write timeout
+    public long getWriteTimeouts() {
+        return writeTimeouts.sum();
+    }
+}
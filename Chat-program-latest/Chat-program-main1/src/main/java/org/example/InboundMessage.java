@@ -0,0 +1,29 @@
+package org.example;
+
+import java.time.LocalDateTime;
+
+/**
+ * A parsed message from a client, whatever wire format it arrived in.
+ * MessageView reads the text line format, BinaryFrameView the binary frames.
+ * Both are reused per connection, so an InboundMessage is only valid until the next one is parsed.
+ */
+public interface InboundMessage {
+
+    Message.MessageType getType();
+
+    String getClientId();
+
+    LocalDateTime getTimestamp();
+
+    int payloadCount();
+
+    String payload(int index);
+
+    String firstPayload();
+
+    // Does the payload field start with c, ignoring leading blanks
+    boolean payloadStartsWith(int index, char c);
+
+    // Every payload field joined with '|', same as String.join("|", getPayloadParts())
+    String rawPayload();
+}
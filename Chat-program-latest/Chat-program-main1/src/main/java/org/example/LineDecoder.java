@@ -0,0 +1,78 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits an incoming byte stream into text lines as bytes arrive.
+ * A line may span several reads; the unfinished tail is kept until
+ * the next '\n'. A trailing '\r' is dropped like BufferedReader.readLine does.
+ * Lines are handed on as bytes, nothing is decoded or allocated per line.
+ */
+public class LineDecoder {
+
+    public interface LineHandler {
+        // buf is only valid during the call
+        void onLine(byte[] buf, int offset, int length) throws IOException;
+    }
+
+    private final int maxLineLength;
+    private byte[] partial = new byte[256];
+    private int length;
+
+    public LineDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    public void decode(ByteBuffer in, LineHandler lines) throws IOException {
+        while (decodeLine(in, lines)) {
+            // next line
+        }
+    }
+
+    // Hands on at most one line and leaves the rest of the buffer alone, so the caller
+    // can switch protocol right after it. Returns false once the buffer is used up.
+    public boolean decodeLine(ByteBuffer in, LineHandler lines) throws IOException {
+        while (in.hasRemaining()) {
+            int newline = indexOfNewline(in);
+            int chunk = (newline < 0 ? in.limit() : newline) - in.position();
+            if (length + chunk > maxLineLength) {
+                throw new IOException("Line longer than " + maxLineLength + " bytes");
+            }
+            if (length == 0 && newline >= 0 && in.hasArray()) {
+                // Whole line is in the read buffer, parse it in place
+                int start = in.arrayOffset() + in.position();
+                in.position(newline + 1);
+                lines.onLine(in.array(), start, stripCarriageReturn(in.array(), start, chunk));
+                return true;
+            }
+            if (length + chunk > partial.length) {
+                partial = Arrays.copyOf(partial, Math.min(Math.max(partial.length * 2, length + chunk), maxLineLength));
+            }
+            in.get(partial, length, chunk);
+            length += chunk;
+            if (newline >= 0) {
+                in.get(); // the '\n'
+                int lineLength = stripCarriageReturn(partial, 0, length);
+                length = 0;
+                lines.onLine(partial, 0, lineLength);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOfNewline(ByteBuffer in) {
+        for (int i = in.position(); i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int stripCarriageReturn(byte[] buf, int offset, int length) {
+        return length > 0 && buf[offset + length - 1] == '\r' ? length - 1 : length;
+    }
+}
@@ -0,0 +1,325 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load generator: drives many simulated clients against a running Server.
+ *
+ * Every client logs in with a username line, joins a room with JOIN_ROOM and
+ * then sends TEXT lines built with Message.ofNow. Each line carries the
+ * sender's send time, so every room member that receives the broadcast
+ * records the end-to-end delivery latency. Clients and the generator share
+ * one JVM, so System.nanoTime() is comparable between them.
+ *
+ * closed: each client sends, waits for its own "[You]: " echo and then
+ *         thinks for --think-ms before the next line. Simple, but a stalled
+ *         server also stalls the senders, so stalls are under-reported.
+ * open:   lines are sent on a fixed schedule, --rate lines/sec in total, no
+ *         matter how slowly the server answers. Latency is measured from the
+ *         time a line was due, not when it was actually written, so a stall
+ *         shows up in the percentiles instead of being hidden (coordinated omission).
+ *
+ * Churn: with probability --churn after each line a client moves to a random
+ * room, half of the moves by /leave followed by JOIN_ROOM.
+ *
+ * The server rate limits senders and rooms, start it with --client-rate=0
+ * --room-rate=0 to measure what it can do without limits.
+ *
+ * Eksempel:
+ * java org.example.LoadGenerator --clients=2000 --mode=closed --think-ms=100
+ * java org.example.LoadGenerator --clients=2000 --mode=open --rate=20000 --churn=0.01
+ * java org.example.LoadGenerator --rooms=Lobby,testRoom1,testRoom2 --duration-s=60 --warmup-s=10
+ */
+public class LoadGenerator {
+
+    public enum LoopMode {
+        CLOSED, OPEN
+    }
+
+    private static final String MARKER = "lg";
+    private static final long ECHO_TIMEOUT_MILLIS = 5000;
+
+    private String host = "localhost";
+    private int port = 5001;
+    private int clients = 1000;
+    private List<String> rooms = List.of("Lobby", "testRoom1", "testRoom2", "testRoom3", "testRoom4");
+    private LoopMode mode = LoopMode.CLOSED;
+    private double rate = 10_000;
+    private long thinkMillis = 0;
+    private double churn = 0;
+    private int messageSize = 32;
+    private long durationSeconds = 30;
+    private long warmupSeconds = 5;
+    private long connectDelayMicros = 200;
+
+    private final LatencyHistogram delivery = new LatencyHistogram();
+    private final LatencyHistogram echo = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong echoTimeouts = new AtomicLong();
+    private final AtomicLong joins = new AtomicLong();
+    private final AtomicLong joinsRejected = new AtomicLong();
+    private final AtomicLong leaves = new AtomicLong();
+    private final AtomicLong notInRoom = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        fromArgs(args).run();
+    }
+
+    public static LoadGenerator fromArgs(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --key=value but got: " + arg);
+            }
+            String key = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (key) {
+                case "host": generator.host = value; break;
+                case "port": generator.port = Integer.parseInt(value); break;
+                case "clients": generator.clients = Math.max(1, Integer.parseInt(value)); break;
+                case "rooms": generator.rooms = List.of(value.split(",")); break;
+                case "mode": generator.mode = LoopMode.valueOf(value.trim().toUpperCase(Locale.ROOT)); break;
+                case "rate": generator.rate = Double.parseDouble(value); break;
+                case "think-ms": generator.thinkMillis = Math.max(0, Long.parseLong(value)); break;
+                case "churn": generator.churn = Double.parseDouble(value); break;
+                case "message-size": generator.messageSize = Math.max(0, Integer.parseInt(value)); break;
+                case "duration-s": generator.durationSeconds = Math.max(1, Long.parseLong(value)); break;
+                case "warmup-s": generator.warmupSeconds = Math.max(0, Long.parseLong(value)); break;
+                case "connect-delay-us": generator.connectDelayMicros = Math.max(0, Long.parseLong(value)); break;
+                default: throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return generator;
+    }
+
+    public void run() throws Exception {
+        System.out.printf("%d %s-loop clients against %s:%d, rooms %s%n", clients, mode.name().toLowerCase(Locale.ROOT), host, port, rooms);
+        List<SimulatedClient> simulated = new ArrayList<>(clients);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            long connectStart = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                SimulatedClient client = new SimulatedClient(i);
+                client.connect();
+                simulated.add(client);
+                executor.submit(client::readLoop);
+                // Spread the connects a little, so the accept backlog does not overflow
+                if (connectDelayMicros > 0) {
+                    TimeUnit.MICROSECONDS.sleep(connectDelayMicros);
+                }
+            }
+            System.out.printf("Connected in %d ms%n", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart));
+
+            long start = System.nanoTime();
+            long interval = mode == LoopMode.OPEN ? (long) (1e9 * clients / rate) : 0;
+            for (SimulatedClient client : simulated) {
+                // In open loop the first sends are staggered so the total rate is even from the start
+                long firstDue = start + (mode == LoopMode.OPEN ? interval * client.index / clients : 0);
+                executor.submit(() -> client.sendLoop(firstDue, interval));
+            }
+
+            TimeUnit.SECONDS.sleep(warmupSeconds);
+            long sentBefore = sent.get();
+            long deliveredBefore = delivered.get();
+            measuring = true;
+            long measureStart = System.nanoTime();
+            TimeUnit.SECONDS.sleep(durationSeconds);
+            measuring = false;
+            double seconds = (System.nanoTime() - measureStart) / 1e9;
+            long sentCount = sent.get() - sentBefore;
+            long deliveredCount = delivered.get() - deliveredBefore;
+
+            running = false;
+            for (SimulatedClient client : simulated) {
+                client.close();
+            }
+            report(seconds, sentCount, deliveredCount);
+        }
+    }
+
+    private void report(double seconds, long sentCount, long deliveredCount) {
+        System.out.printf("Measured %.1f s after %d s warm-up%n", seconds, warmupSeconds);
+        System.out.printf("  sent        %10d  (%.0f msgs/s)%n", sentCount, sentCount / seconds);
+        System.out.printf("  delivered   %10d  (%.0f msgs/s)%n", deliveredCount, deliveredCount / seconds);
+        printLatency("delivery", delivery);
+        printLatency("echo", echo);
+        System.out.printf("  joins %d (rejected %d), leaves %d, sent outside a room %d, echo timeouts %d, disconnects %d%n",
+                joins.get(), joinsRejected.get(), leaves.get(), notInRoom.get(), echoTimeouts.get(), disconnects.get());
+    }
+
+    private static void printLatency(String name, LatencyHistogram histogram) {
+        System.out.printf("  %-9s p50 %8.2f ms  p99 %8.2f ms  p999 %8.2f ms  max %8.2f ms  (%d samples)%n", name,
+                histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6,
+                histogram.percentile(99.9) / 1e6, histogram.max() / 1e6, histogram.count());
+    }
+
+    private class SimulatedClient {
+        private final int index;
+        private final String username;
+        private final String clientId;
+        private final Semaphore echoed = new Semaphore(0);
+        private Socket socket;
+        private OutputStream out;
+        private BufferedReader in;
+        private long seq;
+        // Only touched by the reader thread
+        private boolean inHistory;
+
+        SimulatedClient(int index) {
+            this.index = index;
+            this.username = "load" + index;
+            this.clientId = "lg" + index;
+        }
+
+        void connect() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            send(ClientHandler.HEARTBEAT_REQUEST);
+            send(username);
+        }
+
+        void sendLoop(long firstDue, long interval) {
+            try {
+                joinRoom(rooms.get(index % rooms.size()));
+                String filler = "x".repeat(messageSize);
+                long due = firstDue;
+                while (running) {
+                    long sendTime;
+                    if (mode == LoopMode.OPEN) {
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                        // Measured from when the line was due, a sender that fell behind does not hide the stall
+                        sendTime = due;
+                        due += interval;
+                    } else {
+                        sendTime = System.nanoTime();
+                    }
+                    seq++;
+                    send(Message.ofNow(clientId, Message.MessageType.TEXT,
+                            MARKER, Integer.toString(index), Long.toString(seq), Long.toString(sendTime), filler).toLine());
+                    sent.incrementAndGet();
+
+                    if (mode == LoopMode.CLOSED) {
+                        if (!echoed.tryAcquire(ECHO_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                            echoTimeouts.incrementAndGet();
+                        }
+                        if (thinkMillis > 0) {
+                            TimeUnit.MILLISECONDS.sleep(thinkMillis);
+                        }
+                    }
+                    if (churn > 0 && ThreadLocalRandom.current().nextDouble() < churn) {
+                        if (ThreadLocalRandom.current().nextBoolean()) {
+                            send(Message.ofNow(clientId, Message.MessageType.TEXT, "/leave").toLine());
+                            leaves.incrementAndGet();
+                        }
+                        joinRoom(rooms.get(ThreadLocalRandom.current().nextInt(rooms.size())));
+                    }
+                }
+            } catch (InterruptedException | IOException e) {
+                // Connection closed at the end of the run
+            }
+        }
+
+        private void joinRoom(String room) throws IOException {
+            send(Message.ofNow(clientId, Message.MessageType.JOIN_ROOM, room).toLine());
+            joins.incrementAndGet();
+        }
+
+        void readLoop() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    onLine(line);
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+            if (running) {
+                disconnects.incrementAndGet();
+            }
+        }
+
+        // "<user>: lg|<index>|<seq>|<nanos>|..." from another member, "[You]: lg|..." is our own echo
+        private void onLine(String line) {
+            // Messages replayed on join were measured when they were live
+            if (line.startsWith(ClientHandler.HISTORY_START)) {
+                inHistory = true;
+            }
+            if (inHistory) {
+                inHistory = !line.equals(ClientHandler.HISTORY_END);
+                return;
+            }
+            int marker = line.indexOf(": " + MARKER + "|");
+            if (marker < 0) {
+                if (line.equals(ClientHandler.HEARTBEAT_PING)) {
+                    pong();
+                }
+                if (line.endsWith("is full!") || line.startsWith("Could not join room")) {
+                    joinsRejected.incrementAndGet();
+                } else if (line.startsWith("You are not in any room")) {
+                    // The line was not broadcast, there is no echo to wait for
+                    notInRoom.incrementAndGet();
+                    echoed.release();
+                }
+                return;
+            }
+            long now = System.nanoTime();
+            String[] parts = line.substring(marker + 2).split("\\|", 5);
+            long latency = now - Long.parseLong(parts[3]);
+            if (line.startsWith("[You]: ")) {
+                if (measuring) {
+                    echo.record(latency);
+                }
+                echoed.release();
+                return;
+            }
+            delivered.incrementAndGet();
+            if (measuring) {
+                delivery.record(latency);
+            }
+        }
+
+        // Senders in a quiet phase would otherwise be closed by the read timeout
+        private void pong() {
+            try {
+                send(Message.ofNow(clientId, Message.MessageType.PONG).toLine());
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        private void send(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Handle quietly
+            }
+        }
+    }
+}
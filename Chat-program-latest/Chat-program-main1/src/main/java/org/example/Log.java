@@ -0,0 +1,288 @@
+package org.example;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Server log. Callers only put the template and its arguments into a
+ * bounded lock-free ring buffer, the "log-writer" thread formats them and
+ * writes whole batches to System.out (WARN and ERROR to System.err). So a
+ * handler thread never waits for the console, and when the ring is full the
+ * line is dropped and counted instead of blocking the message path.
+ *
+ * Templates use {} for the arguments, which are only turned into text on the
+ * writer thread:
+ * Log.info("{} joined {}", username, roomName);
+ *
+ * Events that happen per message go through a Limit, which lets only so many
+ * lines a second through and reports how many were left out:
+ * if (BROADCAST_LOG.allow()) {
+ *     BROADCAST_LOG.log("Broadcasting to {}: {}", roomName, message);
+ * }
+ */
+public final class Log {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 2_000_000;
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS", Locale.ROOT).withZone(ZoneId.systemDefault());
+
+    // One slot of the ring, reused for every line that passes through it
+    private static final class Entry {
+        Level level;
+        long millis;
+        String thread;
+        String template;
+        Object a1;
+        Object a2;
+        Object a3;
+        long suppressed;
+    }
+
+    private static final Entry[] ENTRIES = new Entry[CAPACITY];
+    // Per slot: equals the position when the slot is free to write, position + 1 once it holds a line
+    private static final AtomicLongArray SEQUENCE = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong TAIL = new AtomicLong();
+    private static final LongAdder DROPPED = new LongAdder();
+    private static volatile Level level = Level.INFO;
+    // Next position the writer reads, only touched under the class lock
+    private static long head;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ENTRIES[i] = new Entry();
+            SEQUENCE.set(i, i);
+        }
+        Thread writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Whatever is still in the ring when the server stops gets written
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static boolean isEnabled(Level at) {
+        return at.ordinal() >= level.ordinal() && at != Level.OFF;
+    }
+
+    // Lines lost because the ring was full
+    public static long droppedCount() {
+        return DROPPED.sum();
+    }
+
+    public static void debug(String template) { log(Level.DEBUG, 0, template, null, null, null); }
+    public static void debug(String template, Object a1) { log(Level.DEBUG, 0, template, a1, null, null); }
+    public static void debug(String template, Object a1, Object a2) { log(Level.DEBUG, 0, template, a1, a2, null); }
+    public static void debug(String template, Object a1, Object a2, Object a3) { log(Level.DEBUG, 0, template, a1, a2, a3); }
+
+    public static void info(String template) { log(Level.INFO, 0, template, null, null, null); }
+    public static void info(String template, Object a1) { log(Level.INFO, 0, template, a1, null, null); }
+    public static void info(String template, Object a1, Object a2) { log(Level.INFO, 0, template, a1, a2, null); }
+    public static void info(String template, Object a1, Object a2, Object a3) { log(Level.INFO, 0, template, a1, a2, a3); }
+
+    public static void warn(String template) { log(Level.WARN, 0, template, null, null, null); }
+    public static void warn(String template, Object a1) { log(Level.WARN, 0, template, a1, null, null); }
+    public static void warn(String template, Object a1, Object a2) { log(Level.WARN, 0, template, a1, a2, null); }
+    public static void warn(String template, Object a1, Object a2, Object a3) { log(Level.WARN, 0, template, a1, a2, a3); }
+
+    public static void error(String template) { log(Level.ERROR, 0, template, null, null, null); }
+    public static void error(String template, Object a1) { log(Level.ERROR, 0, template, a1, null, null); }
+    public static void error(String template, Object a1, Object a2) { log(Level.ERROR, 0, template, a1, a2, null); }
+    public static void error(String template, Object a1, Object a2, Object a3) { log(Level.ERROR, 0, template, a1, a2, a3); }
+
+    // Claims the next slot with a CAS on the tail, fills it and publishes it through its sequence
+    private static void log(Level at, long suppressed, String template, Object a1, Object a2, Object a3) {
+        if (!isEnabled(at)) {
+            return;
+        }
+        long position = TAIL.get();
+        int slot;
+        while (true) {
+            slot = (int) (position & MASK);
+            long difference = SEQUENCE.get(slot) - position;
+            if (difference == 0) {
+                if (TAIL.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = TAIL.get();
+            } else if (difference < 0) {
+                // The writer is a whole ring behind
+                DROPPED.increment();
+                return;
+            } else {
+                position = TAIL.get();
+            }
+        }
+        Entry entry = ENTRIES[slot];
+        entry.level = at;
+        entry.millis = System.currentTimeMillis();
+        entry.thread = Thread.currentThread().getName();
+        entry.template = template;
+        entry.a1 = a1;
+        entry.a2 = a2;
+        entry.a3 = a3;
+        entry.suppressed = suppressed;
+        SEQUENCE.set(slot, position + 1);
+    }
+
+    // The writer thread, formats everything published so far and writes it as one batch
+    private static void drain() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        StringBuilder err = new StringBuilder(1024);
+        long reportedDrops = 0;
+        while (true) {
+            boolean wrote = drainBatch(out, err);
+            long drops = DROPPED.sum();
+            if (drops != reportedDrops) {
+                err.append("Log: ").append(drops - reportedDrops).append(" lines dropped, the log could not keep up\n");
+                reportedDrops = drops;
+            }
+            write(out, err);
+            if (!wrote) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private static synchronized boolean drainBatch(StringBuilder out, StringBuilder err) {
+        boolean any = false;
+        // Bounded, so a busy ring still gets written out in pieces
+        for (int n = 0; n < CAPACITY; n++) {
+            int slot = (int) (head & MASK);
+            if (SEQUENCE.get(slot) != head + 1) {
+                break;
+            }
+            Entry entry = ENTRIES[slot];
+            StringBuilder target = entry.level.ordinal() >= Level.WARN.ordinal() ? err : out;
+            format(target, entry);
+            entry.thread = null;
+            entry.template = null;
+            entry.a1 = null;
+            entry.a2 = null;
+            entry.a3 = null;
+            SEQUENCE.set(slot, head + CAPACITY);
+            head++;
+            any = true;
+        }
+        return any;
+    }
+
+    // Writes out what is in the ring now, for shutdown
+    public static void flush() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        while (drainBatch(out, err)) {
+            write(out, err);
+        }
+        write(out, err);
+    }
+
+    private static void write(StringBuilder out, StringBuilder err) {
+        // Looked up every time, so System.setOut still takes effect
+        if (out.length() > 0) {
+            PrintStream stream = System.out;
+            stream.print(out);
+            stream.flush();
+            out.setLength(0);
+        }
+        if (err.length() > 0) {
+            PrintStream stream = System.err;
+            stream.print(err);
+            stream.flush();
+            err.setLength(0);
+        }
+    }
+
+    private static void format(StringBuilder target, Entry entry) {
+        TIME.formatTo(Instant.ofEpochMilli(entry.millis), target);
+        target.append(' ').append(entry.level);
+        if (entry.level.name().length() == 4) {
+            target.append(' ');
+        }
+        target.append(" [").append(entry.thread.isEmpty() ? "virtual" : entry.thread).append("] ");
+        String template = entry.template;
+        Object[] args = {entry.a1, entry.a2, entry.a3};
+        int next = 0;
+        int from = 0;
+        int at;
+        while (next < args.length && (at = template.indexOf("{}", from)) >= 0) {
+            target.append(template, from, at).append(args[next++]);
+            from = at + 2;
+        }
+        target.append(template, from, template.length());
+        if (entry.suppressed > 0) {
+            target.append(" (").append(entry.suppressed).append(" more like this left out)");
+        }
+        target.append('\n');
+    }
+
+    public static Limit limit(Level at, int perSecond) {
+        return new Limit(at, perSecond);
+    }
+
+    /**
+     * At most perSecond lines a second for one kind of event, the first line
+     * after a quiet spell says how many were left out. The count per second
+     * is approximate when many threads hit the same limit at once.
+     */
+    public static final class Limit {
+        private final Level at;
+        private final int perSecond;
+        private final AtomicLong second = new AtomicLong(-1);
+        private final AtomicInteger allowed = new AtomicInteger();
+        private final LongAdder suppressed = new LongAdder();
+
+        private Limit(Level at, int perSecond) {
+            this.at = at;
+            this.perSecond = perSecond;
+        }
+
+        // False when the level is off or this second's lines are used up, cheap either way
+        public boolean allow() {
+            if (!isEnabled(at)) {
+                return false;
+            }
+            long now = System.nanoTime() / 1_000_000_000L;
+            long current = second.get();
+            if (current != now && second.compareAndSet(current, now)) {
+                allowed.set(0);
+            }
+            if (allowed.incrementAndGet() <= perSecond) {
+                return true;
+            }
+            suppressed.increment();
+            return false;
+        }
+
+        public void log(String template) { log(template, null, null, null); }
+        public void log(String template, Object a1) { log(template, a1, null, null); }
+        public void log(String template, Object a1, Object a2) { log(template, a1, a2, null); }
+
+        public void log(String template, Object a1, Object a2, Object a3) {
+            Log.log(at, suppressed.sumThenReset(), template, a1, a2, a3);
+        }
+    }
+}
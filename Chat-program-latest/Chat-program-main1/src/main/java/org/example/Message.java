@@ -34,7 +34,7 @@ public class Message {
 
     public enum MessageType {
 
-        TEXT, EMOJI, FILE_TRANSFER, LOGIN, JOIN_ROOM, PRIVATE;
+        TEXT, EMOJI, FILE_TRANSFER, LOGIN, JOIN_ROOM, PRIVATE, PING, PONG;
 
 
 
@@ -58,6 +58,10 @@ public class Message {
 
                 case "PRIVATE": case "WHISPER": case "DM": return PRIVATE;
 
+                case "PING": return PING;
+
+                case "PONG": return PONG;
+
                 default: throw new IllegalArgumentException("Unknown message type: " + s);
 
             }
@@ -136,17 +140,7 @@ public class Message {
 
 
 
-        LocalDateTime ts;
-
-        try {
-
-            ts = LocalDateTime.parse(parts[1].trim(), FMT);
-
-        } catch (Exception e) {
-
-            throw new IllegalArgumentException("Bad timestamp, expected yyyy-MM-dd HH:mm:ss: " + parts[1]);
-
-        }
+        LocalDateTime ts = parseTimestamp(parts[1]);
 
 
 
@@ -170,6 +164,24 @@ public class Message {
 
 
 
+    // Samme regler og fejltekst for Message.parse og MessageView
+
+    static LocalDateTime parseTimestamp(String field) {
+
+        try {
+
+            return LocalDateTime.parse(field.trim(), FMT);
+
+        } catch (Exception e) {
+
+            throw new IllegalArgumentException("Bad timestamp, expected yyyy-MM-dd HH:mm:ss: " + field);
+
+        }
+
+    }
+
+
+
     // --- SERIALIZE to line ---
 
     public String toLine() {
@@ -0,0 +1,509 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only message history on disk, one log per room.
+ *
+ * append() is called for every room broadcast, through HistoryCache, and
+ * only queues the line, it never touches the disk. A single writer thread
+ * drains the queue in batches, writes each room's records with one write
+ * per room and then forces every touched segment once (group commit), so
+ * one fsync covers a whole batch of messages.
+ *
+ * A room's log is a series of segment files named after the sequence number
+ * of their first record. Each segment has a sparse index (a .idx file with
+ * one seq/position pair per few KB), so the last N messages are found by a
+ * binary search and read straight out of a memory-mapped slice of the
+ * segment instead of scanning it.
+ *
+ * Record layout: int length, long seq, long epoch millis, then length bytes of UTF-8.
+ */
+public class MessageLog {
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+    private static final int INDEX_INTERVAL_BYTES = 4 * 1024;
+    private static final int MAX_BATCH = 4096;
+    private static final int MAX_OPEN_SEGMENTS = 256;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    // One message on its way to the writer
+    private record Pending(RoomLog log, String line, long millis) {
+    }
+
+    // Queued by close(), the writer stops once everything before it is written
+    private static final Pending STOP = new Pending(null, null, 0);
+
+    // One stored message, as read back for a replay
+    public record Entry(long seq, long millis, String line) {
+    }
+
+    private static final class Segment {
+        final long baseSeq;
+        final Path file;
+        final Path indexFile;
+        // Bytes written and visible to readers, only grows
+        volatile long size;
+        // Sparse index, seq and position of every indexed record, guarded by the RoomLog
+        long[] indexSeq = new long[16];
+        long[] indexPos = new long[16];
+        int indexCount;
+        long lastIndexedPos = -INDEX_INTERVAL_BYTES;
+
+        Segment(Path directory, long baseSeq) {
+            this.baseSeq = baseSeq;
+            String name = String.format("%020d", baseSeq);
+            this.file = directory.resolve(name + SEGMENT_SUFFIX);
+            this.indexFile = directory.resolve(name + INDEX_SUFFIX);
+        }
+
+        void addIndex(long seq, long pos) {
+            if (indexCount == indexSeq.length) {
+                indexSeq = Arrays.copyOf(indexSeq, indexCount * 2);
+                indexPos = Arrays.copyOf(indexPos, indexCount * 2);
+            }
+            indexSeq[indexCount] = seq;
+            indexPos[indexCount] = pos;
+            indexCount++;
+            lastIndexedPos = pos;
+        }
+
+        // Position of the last indexed record at or before seq, 0 if none
+        long positionBefore(long seq) {
+            int lo = 0;
+            int hi = indexCount - 1;
+            long pos = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (indexSeq[mid] <= seq) {
+                    pos = indexPos[mid];
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return pos;
+        }
+    }
+
+    // The log of one room. Loaded from disk the first time it is used.
+    private static final class RoomLog {
+        final Path directory;
+        final List<Segment> segments = new ArrayList<>();
+        final AtomicInteger pending = new AtomicInteger();
+        long nextSeq;
+        boolean loaded;
+
+        RoomLog(Path directory) {
+            this.directory = directory;
+        }
+
+        synchronized void ensureLoaded() throws IOException {
+            if (loaded) {
+                return;
+            }
+            Files.createDirectories(directory);
+            List<Long> bases = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    bases.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+            bases.sort(null);
+            for (long base : bases) {
+                Segment segment = new Segment(directory, base);
+                segment.size = Files.size(segment.file);
+                loadIndex(segment);
+                segments.add(segment);
+            }
+            if (!segments.isEmpty()) {
+                // The last segment may end in a record that was only half written
+                recover(segments.get(segments.size() - 1));
+            }
+            loaded = true;
+        }
+
+        // Walks the records after the last index entry, drops a torn tail and finds the next seq
+        private void recover(Segment segment) throws IOException {
+            boolean indexed = segment.indexCount > 0;
+            long pos = indexed ? segment.indexPos[segment.indexCount - 1] : 0;
+            // The seq of the record at pos, which stays next if that record turns out torn
+            long seq = indexed ? segment.indexSeq[segment.indexCount - 1] : segment.baseSeq;
+            try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (true) {
+                    header.clear();
+                    if (channel.read(header, pos) < HEADER_SIZE) {
+                        break;
+                    }
+                    int length = header.getInt(0);
+                    if (length < 0 || pos + HEADER_SIZE + length > segment.size) {
+                        break;
+                    }
+                    seq = header.getLong(4) + 1;
+                    pos += HEADER_SIZE + length;
+                }
+                if (pos < segment.size) {
+                    channel.truncate(pos);
+                }
+            }
+            segment.size = pos;
+            nextSeq = seq;
+            // An index entry can point at the record that was cut off
+            while (segment.indexCount > 0 && segment.indexPos[segment.indexCount - 1] >= pos) {
+                segment.indexCount--;
+            }
+            segment.lastIndexedPos = segment.indexCount > 0 ? segment.indexPos[segment.indexCount - 1] : -INDEX_INTERVAL_BYTES;
+        }
+
+        private void loadIndex(Segment segment) throws IOException {
+            if (!Files.exists(segment.indexFile)) {
+                return;
+            }
+            ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(segment.indexFile));
+            while (entries.remaining() >= 16) {
+                long seq = entries.getLong();
+                long pos = entries.getLong();
+                if (pos < segment.size) {
+                    segment.addIndex(seq, pos);
+                }
+            }
+        }
+    }
+
+    private final Path root;
+    private final long segmentBytes;
+    private final boolean fsync;
+    private final BlockingQueue<Pending> queue;
+    private final Map<String, RoomLog> logs = new ConcurrentHashMap<>();
+    // Every room folder on disk, so hasHistory() never has to look
+    private final Set<String> directories = ConcurrentHashMap.newKeySet();
+    // Segments the writer has open, least recently written first, only used by the writer thread
+    private final LinkedHashMap<Segment, FileChannel> openSegments = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    // Writer thread only: records and index entries of one write
+    private ByteBuffer scratch = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer indexEntries = ByteBuffer.allocate(16 * 1024);
+
+    public MessageLog(ServerConfig config) {
+        this.root = Path.of(config.getMessageLogDir());
+        this.segmentBytes = config.getMessageLogSegmentMb() * 1024 * 1024;
+        this.fsync = config.isMessageLogFsync();
+        this.queue = new LinkedBlockingQueue<>(config.getMessageLogQueue());
+        if (Files.isDirectory(root)) {
+            try (DirectoryStream<Path> rooms = Files.newDirectoryStream(root)) {
+                for (Path room : rooms) {
+                    directories.add(room.getFileName().toString());
+                }
+            } catch (IOException e) {
+                Log.warn("Could not list {}: {}", root, e.getMessage());
+            }
+        }
+        Thread writer = new Thread(this::runWriter, "message-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a line for the room's log and returns at once. If the writer has
+     * fallen so far behind that the queue is full the line is not logged and
+     * counted as dropped, the broadcast itself is never held up.
+     */
+    public void append(String roomKey, String line) {
+        RoomLog log = logs.computeIfAbsent(roomKey, this::newRoomLog);
+        log.pending.incrementAndGet();
+        if (!queue.offer(new Pending(log, line, System.currentTimeMillis()))) {
+            log.pending.decrementAndGet();
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * The last count messages of a room, oldest first. Reads only the end of
+     * the log: the index gives the position of the first wanted record and
+     * from there the segments are mapped and read.
+     */
+    public List<Entry> recent(String roomKey, int count) {
+        List<Entry> entries = new ArrayList<>();
+        if (count <= 0) {
+            return entries;
+        }
+        RoomLog log = logs.computeIfAbsent(roomKey, this::newRoomLog);
+        List<Segment> segments;
+        long[] starts;
+        long[] ends;
+        long from;
+        synchronized (log) {
+            try {
+                log.ensureLoaded();
+            } catch (IOException e) {
+                Log.warn("Could not read the message log of {}: {}", roomKey, e.getMessage());
+                return entries;
+            }
+            from = Math.max(0, log.nextSeq - count);
+            segments = new ArrayList<>();
+            for (int i = log.segments.size() - 1; i >= 0; i--) {
+                segments.add(0, log.segments.get(i));
+                if (log.segments.get(i).baseSeq <= from) {
+                    break;
+                }
+            }
+            // Only the first segment is entered part way, through its index
+            starts = new long[segments.size()];
+            ends = new long[segments.size()];
+            for (int i = 0; i < ends.length; i++) {
+                ends[i] = segments.get(i).size;
+            }
+            if (!segments.isEmpty()) {
+                starts[0] = segments.get(0).positionBefore(from);
+            }
+        }
+        // The records below the snapshotted sizes never change, so they are read without the lock
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            try {
+                readRecords(segment, starts[i], ends[i], from, entries);
+            } catch (IOException e) {
+                Log.warn("Could not read {}: {}", segment.file, e.getMessage());
+            }
+        }
+        return entries;
+    }
+
+    private static void readRecords(Segment segment, long start, long end, long fromSeq, List<Entry> out) throws IOException {
+        if (end <= start) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            while (mapped.remaining() >= HEADER_SIZE) {
+                int length = mapped.getInt();
+                long seq = mapped.getLong();
+                long millis = mapped.getLong();
+                if (seq < fromSeq) {
+                    mapped.position(mapped.position() + length);
+                    continue;
+                }
+                byte[] bytes = new byte[length];
+                mapped.get(bytes);
+                out.add(new Entry(seq, millis, new String(bytes, StandardCharsets.UTF_8)));
+            }
+        }
+    }
+
+    // False only for a room that has never had a message logged, answered from memory
+    public boolean hasHistory(String roomKey) {
+        return logs.containsKey(roomKey) || directories.contains(directoryName(roomKey));
+    }
+
+    // Called when a room is evicted, its log is loaded again from disk if the room comes back
+    public void release(String roomKey) {
+        logs.computeIfPresent(roomKey, (key, log) -> log.pending.get() == 0 ? null : log);
+    }
+
+    public long getAppended() {
+        return appended.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // Number of group commits, appended / commits is the average batch size
+    public long getCommits() {
+        return commits.get();
+    }
+
+    private RoomLog newRoomLog(String roomKey) {
+        String directory = directoryName(roomKey);
+        directories.add(directory);
+        return new RoomLog(root.resolve(directory));
+    }
+
+    // Room names can hold any character, the directory is named by a hash of the name instead
+    private static String directoryName(String roomKey) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(roomKey.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    private void runWriter() {
+        List<Pending> batch = new ArrayList<>(MAX_BATCH);
+        Map<RoomLog, List<Pending>> byRoom = new IdentityHashMap<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                boolean stop = batch.remove(STOP);
+                for (Pending pending : batch) {
+                    byRoom.computeIfAbsent(pending.log(), log -> new ArrayList<>()).add(pending);
+                }
+                List<FileChannel> touched = new ArrayList<>();
+                for (Map.Entry<RoomLog, List<Pending>> room : byRoom.entrySet()) {
+                    writeRoom(room.getKey(), room.getValue(), touched);
+                }
+                if (fsync) {
+                    for (FileChannel channel : touched) {
+                        // A channel closed meanwhile to stay under MAX_OPEN_SEGMENTS was forced when it was closed
+                        if (channel.isOpen()) {
+                            channel.force(false);
+                        }
+                    }
+                }
+                commits.incrementAndGet();
+                appended.addAndGet(batch.size());
+                if (stop) {
+                    closeSegments();
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                Log.error("Message log write failed: {}", e.getMessage());
+            } finally {
+                for (List<Pending> pendings : byRoom.values()) {
+                    pendings.get(0).log().pending.addAndGet(-pendings.size());
+                }
+                batch.clear();
+                byRoom.clear();
+            }
+        }
+    }
+
+    // Writes one room's share of a batch, rolling to a new segment when the current one is full
+    private void writeRoom(RoomLog log, List<Pending> records, List<FileChannel> touched) throws IOException {
+        synchronized (log) {
+            log.ensureLoaded();
+            int i = 0;
+            while (i < records.size()) {
+                Segment segment = activeSegment(log);
+                FileChannel channel = channel(segment);
+                scratch.clear();
+                indexEntries.clear();
+                long pos = segment.size;
+                // Fill the scratch buffer with as many records as fit in it and in the segment
+                while (i < records.size() && pos < segmentBytes) {
+                    Pending record = records.get(i);
+                    byte[] bytes = record.line().getBytes(StandardCharsets.UTF_8);
+                    if (scratch.remaining() < HEADER_SIZE + bytes.length) {
+                        if (scratch.position() > 0) {
+                            break;
+                        }
+                        scratch = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+                    }
+                    if (pos - segment.lastIndexedPos >= INDEX_INTERVAL_BYTES && indexEntries.remaining() >= 16) {
+                        segment.addIndex(log.nextSeq, pos);
+                        indexEntries.putLong(log.nextSeq).putLong(pos);
+                    }
+                    scratch.putInt(bytes.length).putLong(log.nextSeq).putLong(record.millis()).put(bytes);
+                    pos += HEADER_SIZE + bytes.length;
+                    log.nextSeq++;
+                    i++;
+                }
+                scratch.flip();
+                long writePos = segment.size;
+                while (scratch.hasRemaining()) {
+                    writePos += channel.write(scratch, writePos);
+                }
+                segment.size = pos;
+                writeIndexEntries(segment);
+                if (!touched.contains(channel)) {
+                    touched.add(channel);
+                }
+            }
+        }
+    }
+
+    private Segment activeSegment(RoomLog log) {
+        Segment last = log.segments.isEmpty() ? null : log.segments.get(log.segments.size() - 1);
+        if (last == null || last.size >= segmentBytes) {
+            last = new Segment(log.directory, log.nextSeq);
+            log.segments.add(last);
+        }
+        return last;
+    }
+
+    // The index is only a shortcut, so its entries are appended without fsync, once per room and batch
+    private void writeIndexEntries(Segment segment) throws IOException {
+        if (indexEntries.position() == 0) {
+            return;
+        }
+        indexEntries.flip();
+        try (FileChannel index = FileChannel.open(segment.indexFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (indexEntries.hasRemaining()) {
+                index.write(indexEntries);
+            }
+        }
+    }
+
+    /**
+     * Writes what is queued and stops the writer, for a server that is shut
+     * down. Waits for room in a full queue, lines appended afterwards are not
+     * written.
+     */
+    public void close() {
+        try {
+            queue.put(STOP);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeSegments() {
+        for (FileChannel channel : openSegments.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Handle quietly
+            }
+        }
+        openSegments.clear();
+    }
+
+    // Open channels are kept for the most recently written segments only, rooms can be many
+    private FileChannel channel(Segment segment) throws IOException {
+        FileChannel channel = openSegments.get(segment);
+        if (channel != null && channel.isOpen()) {
+            return channel;
+        }
+        channel = FileChannel.open(segment.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        openSegments.put(segment, channel);
+        if (openSegments.size() > MAX_OPEN_SEGMENTS) {
+            Map.Entry<Segment, FileChannel> eldest = openSegments.entrySet().iterator().next();
+            openSegments.remove(eldest.getKey());
+            eldest.getValue().force(false);
+            eldest.getValue().close();
+        }
+        return channel;
+    }
+}
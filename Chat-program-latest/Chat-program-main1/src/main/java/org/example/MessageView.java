@@ -0,0 +1,246 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Allocation-free parser for the clientId|yyyy-MM-dd HH:mm:ss|TYPE|payload... line.
+ *
+ * Works directly on the bytes of a line: it only records where the '|'
+ * delimiters are, matches the type name without building a String, and
+ * reads the timestamp digits by hand. Strings for clientId and payload
+ * fields are only created when asked for. One view is reused for every
+ * line of a connection, so it must not be kept after the next parse().
+ *
+ * Accepts and rejects exactly what Message.parse does, with the same
+ * error texts, including empty fields and the MessageType.fromStringSafe aliases.
+ */
+public final class MessageView implements InboundMessage {
+
+    // Same names as MessageType.fromStringSafe, matched case-insensitively on ASCII bytes
+    private static final byte[][] TYPE_NAMES;
+    private static final Message.MessageType[] TYPE_VALUES;
+
+    static {
+        Object[][] aliases = {
+                {"TEXT", Message.MessageType.TEXT}, {"TXT", Message.MessageType.TEXT}, {"MESSAGE", Message.MessageType.TEXT},
+                {"EMOJI", Message.MessageType.EMOJI}, {"EMOJIS", Message.MessageType.EMOJI},
+                {"FILE_TRANSFER", Message.MessageType.FILE_TRANSFER}, {"FILE", Message.MessageType.FILE_TRANSFER},
+                {"SEND_FILE", Message.MessageType.FILE_TRANSFER},
+                {"LOGIN", Message.MessageType.LOGIN}, {"AUTH", Message.MessageType.LOGIN},
+                {"JOIN_ROOM", Message.MessageType.JOIN_ROOM}, {"JOIN", Message.MessageType.JOIN_ROOM},
+                {"PRIVATE", Message.MessageType.PRIVATE}, {"WHISPER", Message.MessageType.PRIVATE},
+                {"DM", Message.MessageType.PRIVATE},
+                {"PING", Message.MessageType.PING}, {"PONG", Message.MessageType.PONG},
+        };
+        TYPE_NAMES = new byte[aliases.length][];
+        TYPE_VALUES = new Message.MessageType[aliases.length];
+        for (int i = 0; i < aliases.length; i++) {
+            TYPE_NAMES[i] = ((String) aliases[i][0]).getBytes(StandardCharsets.US_ASCII);
+            TYPE_VALUES[i] = (Message.MessageType) aliases[i][1];
+        }
+    }
+
+    private static final int[] DAYS_IN_MONTH = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+    private byte[] buf;
+    private int start;
+    private int end;
+    // Positions of every '|' in the line
+    private int[] delimiters = new int[8];
+    private int delimiterCount;
+
+    private Message.MessageType type;
+    private int year, month, day, hour, minute, second;
+    // Only set when the timestamp was not in the plain 19 character form
+    private LocalDateTime slowTimestamp;
+
+    public MessageView parse(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.start = offset;
+        this.end = offset + length;
+        this.slowTimestamp = null;
+
+        if (isBlank(start, end))
+            throw new IllegalArgumentException("Empty message");
+
+        delimiterCount = 0;
+        for (int i = start; i < end; i++) {
+            if (buf[i] == '|') {
+                if (delimiterCount == delimiters.length) {
+                    delimiters = Arrays.copyOf(delimiters, delimiters.length * 2);
+                }
+                delimiters[delimiterCount++] = i;
+            }
+        }
+        if (delimiterCount < 2)
+            throw new IllegalArgumentException("Malformed message (need at least 3 parts): " + string(start, end));
+
+        if (trimStart(start, delimiters[0]) == delimiters[0])
+            throw new IllegalArgumentException("Missing clientId");
+
+        parseTimestamp(fieldStart(1), fieldEnd(1));
+        type = parseType(fieldStart(2), fieldEnd(2));
+        return this;
+    }
+
+    public Message.MessageType getType() {
+        return type;
+    }
+
+    public String getClientId() {
+        int from = trimStart(start, delimiters[0]);
+        return string(from, trimEnd(from, delimiters[0]));
+    }
+
+    public LocalDateTime getTimestamp() {
+        return slowTimestamp != null ? slowTimestamp : LocalDateTime.of(year, month, day, hour, minute, second);
+    }
+
+    public int payloadCount() {
+        return delimiterCount - 2;
+    }
+
+    public String payload(int index) {
+        return string(fieldStart(index + 3), fieldEnd(index + 3));
+    }
+
+    public String firstPayload() {
+        return payloadCount() == 0 ? "" : payload(0);
+    }
+
+    // Does the payload field start with c, ignoring leading blanks, checked without creating a String
+    public boolean payloadStartsWith(int index, char c) {
+        if (index >= payloadCount()) {
+            return false;
+        }
+        int from = trimStart(fieldStart(index + 3), fieldEnd(index + 3));
+        return from < fieldEnd(index + 3) && buf[from] == c;
+    }
+
+    // Every payload field with its '|' separators kept, same as String.join("|", getPayloadParts())
+    public String rawPayload() {
+        return payloadCount() == 0 ? "" : string(fieldStart(3), end);
+    }
+
+    public Message toMessage() {
+        List<String> payload = new ArrayList<>(payloadCount());
+        for (int i = 0; i < payloadCount(); i++) {
+            payload.add(payload(i));
+        }
+        return new Message(getClientId(), type, getTimestamp(), payload);
+    }
+
+    private int fieldStart(int field) {
+        return field == 0 ? start : delimiters[field - 1] + 1;
+    }
+
+    private int fieldEnd(int field) {
+        return field < delimiterCount ? delimiters[field] : end;
+    }
+
+    private void parseTimestamp(int from, int to) {
+        int s = trimStart(from, to);
+        int e = trimEnd(s, to);
+        if (e - s == 19
+                && buf[s + 4] == '-' && buf[s + 7] == '-' && buf[s + 10] == ' '
+                && buf[s + 13] == ':' && buf[s + 16] == ':') {
+            year = digits(s, 4);
+            month = digits(s + 5, 2);
+            day = digits(s + 8, 2);
+            hour = digits(s + 11, 2);
+            minute = digits(s + 14, 2);
+            second = digits(s + 17, 2);
+            if (year >= 1 && month >= 1 && month <= 12 && day >= 1 && day <= daysInMonth(year, month)
+                    && hour >= 0 && hour <= 23 && minute >= 0 && minute <= 59 && second >= 0 && second <= 59) {
+                return;
+            }
+        }
+        // Anything unusual goes through the same formatter as Message.parse, so the outcome is identical
+        slowTimestamp = Message.parseTimestamp(string(from, to));
+    }
+
+    // -1 if any of the bytes is not a digit
+    private int digits(int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2 && (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0))) {
+            return 29;
+        }
+        return DAYS_IN_MONTH[month - 1];
+    }
+
+    private Message.MessageType parseType(int from, int to) {
+        int s = trimStart(from, to);
+        int e = trimEnd(s, to);
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            if (equalsIgnoreCaseAscii(TYPE_NAMES[i], s, e)) {
+                return TYPE_VALUES[i];
+            }
+        }
+        // Non-ASCII case rules and the error text are left to the original
+        return Message.MessageType.fromStringSafe(string(from, to));
+    }
+
+    private boolean equalsIgnoreCaseAscii(byte[] upper, int from, int to) {
+        if (to - from != upper.length) {
+            return false;
+        }
+        for (int i = 0; i < upper.length; i++) {
+            int b = buf[from + i];
+            if (b >= 'a' && b <= 'z') {
+                b -= 'a' - 'A';
+            }
+            if (b != upper[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Same as String.trim(), which only removes chars up to ' ', all of them single UTF-8 bytes
+    private int trimStart(int from, int to) {
+        while (from < to && (buf[from] & 0xff) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && (buf[to - 1] & 0xff) <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    private boolean isBlank(int from, int to) {
+        for (int i = from; i < to; i++) {
+            int b = buf[i] & 0xff;
+            if (b >= 0x80) {
+                // Unicode spaces need String.isBlank to decide
+                return string(from, to).isBlank();
+            }
+            if (!Character.isWhitespace(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String string(int from, int to) {
+        return new String(buf, from, to - from, StandardCharsets.UTF_8);
+    }
+}
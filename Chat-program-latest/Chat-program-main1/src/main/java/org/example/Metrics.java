@@ -0,0 +1,366 @@
+package org.example;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Server-wide counters and latency histograms.
+ *
+ * Everything on the message path is a LongAdder increment or a
+ * LatencyHistogram.record(), neither allocates nor takes a lock, so
+ * recording costs a few nanoseconds even when every handler thread does it
+ * at once. Per-room counts live in Room and per-connection counts in
+ * ClientHandler and OutboundQueue, they are only summed up here when
+ * someone reads the metrics.
+ *
+ * Readable through JMX (org.example:type=ChatServer), the text endpoint
+ * in MetricsEndpoint and the status thread, which all use render().
+ */
+public class Metrics implements MetricsMBean {
+    private static final Metrics INSTANCE = new Metrics();
+    private static final int TOP = 20;
+    private static final int RATE_WINDOW_SECONDS = 10;
+
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder parseErrors = new LongAdder();
+    private final LongAdder broadcasts = new LongAdder();
+    private final LongAdder deliveries = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder accepts = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LatencyHistogram parseNanos = new LatencyHistogram();
+    private final LatencyHistogram broadcastNanos = new LatencyHistogram();
+    // Accepts per second for the last few seconds, slot = second % window, stamped with the second it counts
+    private final AtomicLongArray acceptSlots = new AtomicLongArray(RATE_WINDOW_SECONDS);
+    private final AtomicLongArray acceptSlotSecond = new AtomicLongArray(RATE_WINDOW_SECONDS);
+    private final long startNanos = System.nanoTime();
+    private volatile Server server;
+
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    // Gives the gauges (connections, rooms, queues) something to read
+    public void bind(Server server) {
+        this.server = server;
+    }
+
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("org.example:type=ChatServer"));
+        } catch (JMException e) {
+            Log.warn("Could not register the metrics MBean: {}", e.getMessage());
+        }
+    }
+
+    // ---- recording, called on the message path ----
+
+    public void recordParse(long nanos) {
+        messagesIn.increment();
+        parseNanos.record(nanos);
+    }
+
+    public void recordParseError() {
+        parseErrors.increment();
+    }
+
+    public void recordBroadcast(int recipients, long nanos) {
+        broadcasts.increment();
+        deliveries.add(recipients);
+        broadcastNanos.record(nanos);
+    }
+
+    public void recordBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void recordBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    // A message that hit a token bucket, paused or dropped depending on the policy
+    public void recordRateLimited() {
+        rateLimited.increment();
+    }
+
+    public void recordAccept() {
+        accepts.increment();
+        long second = System.nanoTime() / 1_000_000_000L;
+        int slot = (int) (second % RATE_WINDOW_SECONDS);
+        long stamped = acceptSlotSecond.get(slot);
+        if (stamped != second && acceptSlotSecond.compareAndSet(slot, stamped, second)) {
+            // First accept in a new second, whatever the slot held is older than the window
+            acceptSlots.set(slot, 0);
+        }
+        acceptSlots.incrementAndGet(slot);
+    }
+
+    // ---- reading ----
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+
+    @Override
+    public long getDeliveries() {
+        return deliveries.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getAccepts() {
+        return accepts.sum();
+    }
+
+    // Average over the last full seconds of the window, the current second is still counting
+    @Override
+    public double getAcceptsPerSecond() {
+        long now = System.nanoTime() / 1_000_000_000L;
+        long total = 0;
+        for (int i = 0; i < RATE_WINDOW_SECONDS; i++) {
+            long second = acceptSlotSecond.get(i);
+            if (second < now && second >= now - (RATE_WINDOW_SECONDS - 1)) {
+                total += acceptSlots.get(i);
+            }
+        }
+        return total / (double) (RATE_WINDOW_SECONDS - 1);
+    }
+
+    @Override
+    public int getConnections() {
+        Server s = server;
+        return s == null ? 0 : s.getClientCount();
+    }
+
+    @Override
+    public int getRooms() {
+        Server s = server;
+        return s == null ? 0 : s.getRoomManager().getRoomCount();
+    }
+
+    @Override
+    public long getOutboundQueuedFrames() {
+        long queued = 0;
+        for (OutboundQueue queue : outboundQueues()) {
+            queued += queue.depth();
+        }
+        return queued;
+    }
+
+    @Override
+    public int getOutboundMaxDepth() {
+        int max = 0;
+        for (OutboundQueue queue : outboundQueues()) {
+            max = Math.max(max, queue.maxDepth());
+        }
+        return max;
+    }
+
+    @Override
+    public long getOutboundDroppedFrames() {
+        long dropped = 0;
+        for (OutboundQueue queue : outboundQueues()) {
+            dropped += queue.droppedCount();
+        }
+        return dropped;
+    }
+
+    @Override
+    public long getParseP50Nanos() {
+        return parseNanos.percentile(50);
+    }
+
+    @Override
+    public long getParseP99Nanos() {
+        return parseNanos.percentile(99);
+    }
+
+    @Override
+    public long getBroadcastP50Nanos() {
+        return broadcastNanos.percentile(50);
+    }
+
+    @Override
+    public long getBroadcastP99Nanos() {
+        return broadcastNanos.percentile(99);
+    }
+
+    @Override
+    public long getBroadcastMaxNanos() {
+        return broadcastNanos.max();
+    }
+
+    private List<OutboundQueue> outboundQueues() {
+        List<OutboundQueue> queues = new ArrayList<>();
+        Server s = server;
+        if (s != null) {
+            for (ClientHandler client : s.getClients()) {
+                OutboundQueue queue = client.getOutboundQueue();
+                if (queue != null) {
+                    queues.add(queue);
+                }
+            }
+        }
+        return queues;
+    }
+
+    /**
+     * Plain text, one "name value" per line, labels in braces. Only the
+     * busiest rooms and the connections with the deepest queues are listed,
+     * there can be far too many of both to show them all.
+     */
+    @Override
+    public String render() {
+        StringBuilder out = new StringBuilder();
+        line(out, "chat_uptime_seconds", (System.nanoTime() - startNanos) / 1_000_000_000L);
+        line(out, "chat_connections", getConnections());
+        line(out, "chat_accepts_total", getAccepts());
+        out.append("chat_accepts_per_second ").append(String.format("%.1f", getAcceptsPerSecond())).append('\n');
+        line(out, "chat_messages_in_total", getMessagesIn());
+        line(out, "chat_parse_errors_total", parseErrors.sum());
+        line(out, "chat_rate_limited_total", rateLimited.sum());
+        line(out, "chat_broadcasts_total", getBroadcasts());
+        line(out, "chat_deliveries_total", getDeliveries());
+        line(out, "chat_bytes_in_total", getBytesIn());
+        line(out, "chat_bytes_out_total", getBytesOut());
+        histogram(out, "chat_parse_nanos", parseNanos);
+        histogram(out, "chat_broadcast_nanos", broadcastNanos);
+        line(out, "chat_outbound_queued_frames", getOutboundQueuedFrames());
+        line(out, "chat_outbound_max_depth", getOutboundMaxDepth());
+        line(out, "chat_outbound_dropped_frames_total", getOutboundDroppedFrames());
+
+        Server s = server;
+        if (s == null) {
+            return out.toString();
+        }
+        RoomManager rooms = s.getRoomManager();
+        line(out, "chat_rooms", rooms.getRoomCount());
+        HistoryCache history = rooms.getHistoryCache();
+        line(out, "chat_history_cache_bytes", history.getBytes());
+        line(out, "chat_history_cache_rooms", history.getCachedRooms());
+        line(out, "chat_history_cache_hits_total", history.getHits());
+        line(out, "chat_history_cache_misses_total", history.getMisses());
+        line(out, "chat_history_cache_evictions_total", history.getEvictions());
+        Presence presence = rooms.getPresence();
+        line(out, "chat_presence_digests_total", presence.getDigests());
+        line(out, "chat_presence_coalesced_total", presence.getCoalesced());
+        line(out, "chat_presence_suppressed_total", presence.getSuppressed());
+        MessageLog log = rooms.getMessageLog();
+        if (log != null) {
+            line(out, "chat_message_log_appended_total", log.getAppended());
+            line(out, "chat_message_log_dropped_total", log.getDropped());
+            line(out, "chat_message_log_commits_total", log.getCommits());
+        }
+        FileRelay relay = s.getFileRelay();
+        line(out, "chat_file_transfers_active", relay.getActiveTransfers());
+        FileStore store = relay.getStore();
+        if (store != null) {
+            line(out, "chat_file_store_files", store.getFileCount());
+            line(out, "chat_file_store_bytes", store.getTotalBytes());
+            line(out, "chat_file_store_dedup_hits_total", store.getDedupHits());
+        }
+        line(out, "chat_offline_inboxes", s.getOfflineInboxCount());
+        line(out, "chat_sessions_detached", s.getDetachedSessionCount());
+        line(out, "chat_sessions_resumed_total", s.getSessionsResumed());
+        line(out, "chat_sessions_expired_total", s.getSessionsExpired());
+        line(out, "chat_log_dropped_lines_total", Log.droppedCount());
+        IdleReaper reaper = s.getIdleReaper();
+        if (reaper != null) {
+            line(out, "chat_heartbeat_pings_total", reaper.getPings());
+            line(out, "chat_idle_closed_total{reason=\"read\"}", reaper.getReadTimeouts());
+            line(out, "chat_idle_closed_total{reason=\"write\"}", reaper.getWriteTimeouts());
+        }
+        Cluster cluster = s.getCluster();
+        if (cluster != null) {
+            line(out, "chat_cluster_remote_users", cluster.getRemoteUserCount());
+            line(out, "chat_cluster_ring_nodes", cluster.getRingNodes().size());
+            line(out, "chat_cluster_routed_to_owner_total", cluster.getRoutedToOwner());
+            line(out, "chat_cluster_passed_on_total", cluster.getPassedOn());
+            for (ClusterLink link : cluster.getLinks()) {
+                String label = "{node=\"" + escape(link.getPeer().name()) + "\"}";
+                line(out, "chat_cluster_link_up" + label, link.isConnected() ? 1 : 0);
+                line(out, "chat_cluster_frames_sent_total" + label, link.getFramesSent());
+                line(out, "chat_cluster_batches_total" + label, link.getBatches());
+                line(out, "chat_cluster_frames_dropped_total" + label, link.getDropped());
+            }
+        }
+
+        for (Room room : rooms.firstRooms(TOP, Comparator.comparingLong(Room::getMessagesIn).reversed())) {
+            String label = "{room=\"" + escape(room.getRoomName()) + "\"}";
+            line(out, "chat_room_members" + label, room.howManyInroom());
+            line(out, "chat_room_messages_in_total" + label, room.getMessagesIn());
+            line(out, "chat_room_messages_out_total" + label, room.getMessagesOut());
+        }
+        List<ClientHandler> clients = new ArrayList<>(s.getClients());
+        for (ClientHandler client : top(clients, Comparator.comparingInt(Metrics::queueDepth))) {
+            String label = "{user=\"" + escape(client.getUsername()) + "\"}";
+            OutboundQueue queue = client.getOutboundQueue();
+            line(out, "chat_connection_bytes_in_total" + label, client.getBytesRead());
+            if (queue != null) {
+                line(out, "chat_connection_bytes_out_total" + label, queue.bytesWritten());
+                line(out, "chat_connection_queue_depth" + label, queue.depth());
+                line(out, "chat_connection_queue_max_depth" + label, queue.maxDepth());
+                line(out, "chat_connection_dropped_frames_total" + label, queue.droppedCount());
+            }
+        }
+        return out.toString();
+    }
+
+    private static int queueDepth(ClientHandler client) {
+        OutboundQueue queue = client.getOutboundQueue();
+        return queue == null ? 0 : queue.depth();
+    }
+
+    // The TOP largest by the comparator, largest first, without sorting everything
+    private static <T> List<T> top(List<T> items, Comparator<T> order) {
+        PriorityQueue<T> smallest = new PriorityQueue<>(order);
+        for (T item : items) {
+            smallest.add(item);
+            if (smallest.size() > TOP) {
+                smallest.poll();
+            }
+        }
+        List<T> result = new ArrayList<>(smallest);
+        result.sort(order.reversed());
+        return result;
+    }
+
+    private static void histogram(StringBuilder out, String name, LatencyHistogram histogram) {
+        line(out, name + "_count", histogram.count());
+        line(out, name + "{quantile=\"0.5\"}", histogram.percentile(50));
+        line(out, name + "{quantile=\"0.99\"}", histogram.percentile(99));
+        line(out, name + "{quantile=\"0.999\"}", histogram.percentile(99.9));
+        line(out, name + "_max", histogram.max());
+    }
+
+    private static void line(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,41 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves Metrics.render() as text/plain on GET /metrics.
+ * Bound to the loopback address only, it is meant for a local scraper or curl.
+ *
+ * Eksempel:
+ * curl http://localhost:5003/metrics
+ */
+public class MetricsEndpoint {
+
+    public static void start(Metrics metrics, int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            try (exchange) {
+                if (!exchange.getRequestMethod().equals("GET")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        http.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        http.start();
+        Log.info("Metrics on http://localhost:{}/metrics", port);
+    }
+}
@@ -0,0 +1,45 @@
+package org.example;
+
+/**
+ * What the server shows over JMX, under org.example:type=ChatServer.
+ * Latencies are in nanoseconds.
+ */
+public interface MetricsMBean {
+
+    long getMessagesIn();
+
+    long getBroadcasts();
+
+    long getDeliveries();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getAccepts();
+
+    double getAcceptsPerSecond();
+
+    int getConnections();
+
+    int getRooms();
+
+    long getOutboundQueuedFrames();
+
+    int getOutboundMaxDepth();
+
+    long getOutboundDroppedFrames();
+
+    long getParseP50Nanos();
+
+    long getParseP99Nanos();
+
+    long getBroadcastP50Nanos();
+
+    long getBroadcastP99Nanos();
+
+    long getBroadcastMaxNanos();
+
+    // Text snapshot, the same as the HTTP endpoint returns
+    String render();
+}
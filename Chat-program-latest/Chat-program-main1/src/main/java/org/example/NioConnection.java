@@ -0,0 +1,183 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Non-blocking transport owned by one EventLoop
+public class NioConnection implements ClientConnection {
+    private static final Log.Limit SLOW_CLIENT_LOG = Log.limit(Log.Level.WARN, 20);
+    private static final Log.Limit CONNECTION_ERROR_LOG = Log.limit(Log.Level.WARN, 50);
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final EventLoop loop;
+    private final int port;
+    private final OutboundQueue outbound;
+    // Frames being written right now, taken off the queue so DROP_OLDEST can never cut one in half
+    private final GatheringWriter gather;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private ClientHandler handler;
+    // Bytes read before the handler was paused by the rate limit, handed on when it resumes
+    private ByteBuffer held;
+
+    public NioConnection(SocketChannel channel, SelectionKey key, EventLoop loop, ServerConfig config) {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.port = channel.socket().getPort();
+        this.outbound = config.newOutboundQueue();
+        this.gather = new GatheringWriter(config.getMaxWriteBatch());
+    }
+
+    public void setHandler(ClientHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void writeFrame(ByteBuffer frame) {
+        enqueue(frame);
+    }
+
+    private void enqueue(ByteBuffer frame) {
+        if (closed.get()) {
+            return;
+        }
+        // No event loop may wait, a broadcast from loop A to a slow client on loop B would stall all of A.
+        // So BACKPRESSURE only blocks writers on other threads, on a loop a full queue disconnects.
+        if (!outbound.offer(frame, !EventLoop.onEventLoop())) {
+            if (SLOW_CLIENT_LOG.allow()) {
+                SLOW_CLIENT_LOG.log("Disconnecting slow client on port {} ({} frames queued)", port, outbound.depth());
+            }
+            abort();
+            return;
+        }
+        // One flush per processing round, no matter how many lines were queued
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    // Runs on the event loop
+    void onReadable(ByteBuffer readBuffer) {
+        try {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            long pause = handler.onBytes(readBuffer);
+            if (pause > 0) {
+                // The read buffer belongs to the whole loop, so keep a copy of what is left
+                held = ByteBuffer.allocate(readBuffer.remaining()).put(readBuffer).flip();
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                loop.schedule(this::resumeReading, pause);
+            }
+        } catch (IOException e) {
+            if (CONNECTION_ERROR_LOG.allow()) {
+                CONNECTION_ERROR_LOG.log("Error with client {}: {}", handler.getClientId(), e.getMessage());
+            }
+            close();
+        }
+    }
+
+    // Runs on the event loop once the rate limit pause is over
+    private void resumeReading() {
+        if (closed.get()) {
+            return;
+        }
+        try {
+            long pause = handler.continueBytes(held);
+            if (pause > 0) {
+                loop.schedule(this::resumeReading, pause);
+                return;
+            }
+            held = null;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        } catch (IOException e) {
+            if (CONNECTION_ERROR_LOG.allow()) {
+                CONNECTION_ERROR_LOG.log("Error with client {}: {}", handler.getClientId(), e.getMessage());
+            }
+            close();
+        }
+    }
+
+    // Runs on the event loop, at the end of a processing round, so every line queued in it goes out in one write
+    void flush() {
+        flushScheduled.set(false);
+        if (closed.get()) {
+            return;
+        }
+        try {
+            while (gather.hasPending() || gather.fillFrom(outbound) > 0) {
+                gather.writeTo(channel, outbound);
+                if (gather.hasPending()) {
+                    // Socket buffer is full, continue when the selector says we can write
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (loop.inEventLoop()) {
+            doClose();
+        } else {
+            loop.execute(this::doClose);
+        }
+    }
+
+    // Closes without trying to send what is still queued
+    @Override
+    public void abort() {
+        outbound.clear();
+        close();
+    }
+
+    private void doClose() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // Best effort so e.g. "Goodbye!" reaches the client before the close
+            while (gather.hasPending() || gather.fillFrom(outbound) > 0) {
+                gather.writeTo(channel, outbound);
+                if (gather.hasPending()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Handle quietly
+        }
+        gather.clear();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Handle quietly
+        }
+        outbound.clear();
+        if (handler != null) {
+            handler.cleanup();
+        }
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+}
@@ -0,0 +1,52 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Selector based server mode.
+ * The calling thread accepts connections and hands them round-robin to a
+ * small fixed set of event loops, instead of one thread per client.
+ * Same line protocol as the threaded mode, so Client works unchanged.
+ */
+public class NioServer {
+    private static final Log.Limit ACCEPT_LOG = Log.limit(Log.Level.INFO, 50);
+    private final Server server;
+    private final int port;
+    private final EventLoop[] loops;
+
+    public NioServer(Server server, int port, int eventLoops) throws IOException {
+        this.server = server;
+        this.port = port;
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop(server);
+        }
+    }
+
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread loopThread = new Thread(loops[i], "nio-loop-" + i);
+            loopThread.setDaemon(true);
+            loopThread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            Log.info("Chat Server (NIO, {} event loops) listening on port {}", loops.length, port);
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                Metrics.get().recordAccept();
+                if (ACCEPT_LOG.allow()) {
+                    ACCEPT_LOG.log("New client connected: {}", channel.socket().getInetAddress());
+                }
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+}
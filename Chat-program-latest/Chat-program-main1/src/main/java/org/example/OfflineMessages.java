@@ -0,0 +1,106 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds private messages for users who just disconnected, so a DM sent
+ * while someone is reconnecting is delivered when they log in again.
+ *
+ * Only users that were logged in within the retention window have an inbox,
+ * a DM to a name nobody has used is refused instead of buffered. Each inbox
+ * keeps at most maxPerUser lines, the oldest are dropped first and counted.
+ */
+public class OfflineMessages {
+
+    private static final class Inbox {
+        final ArrayDeque<String> lines = new ArrayDeque<>();
+        final long expiresAtMillis;
+        int dropped;
+        // Set by drain(), nothing can be added after that
+        boolean closed;
+
+        Inbox(long expiresAtMillis) {
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Inbox> inboxes = new ConcurrentHashMap<>();
+    private final int maxPerUser;
+    private final long retentionMillis;
+
+    public OfflineMessages(int maxPerUser, long retentionMillis) {
+        this.maxPerUser = maxPerUser;
+        this.retentionMillis = retentionMillis;
+    }
+
+    // Called when a logged in user disconnects, opens an inbox for the retention window
+    public void expect(String username) {
+        // An inbox nobody has drained yet keeps its lines and its deadline
+        inboxes.compute(RoomManager.key(username), (key, inbox) ->
+                inbox == null || expired(inbox) ? new Inbox(System.currentTimeMillis() + retentionMillis) : inbox);
+    }
+
+    // False if the user has no open inbox, i.e. was not online recently
+    public boolean offer(String username, String line) {
+        Inbox inbox = inboxes.get(RoomManager.key(username));
+        if (inbox == null || expired(inbox)) {
+            return false;
+        }
+        synchronized (inbox) {
+            if (inbox.closed) {
+                // Drained in the meantime, the user is logging in right now
+                return false;
+            }
+            if (inbox.lines.size() == maxPerUser) {
+                inbox.lines.pollFirst();
+                inbox.dropped++;
+            }
+            inbox.lines.addLast(line);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the inbox and returns what was in it, with a note first if lines were dropped.
+     * The removal is atomic, so when a login and a late sender both drain, only one gets the lines,
+     * and a line is either in what drain() returns or refused by offer(), never lost in between.
+     */
+    public List<String> drain(String username) {
+        Inbox inbox = inboxes.remove(RoomManager.key(username));
+        List<String> lines = new ArrayList<>();
+        if (inbox == null || expired(inbox)) {
+            return lines;
+        }
+        synchronized (inbox) {
+            inbox.closed = true;
+            if (inbox.dropped > 0) {
+                lines.add("(" + inbox.dropped + " older private messages were dropped)");
+            }
+            lines.addAll(inbox.lines);
+            inbox.lines.clear();
+        }
+        return lines;
+    }
+
+    // Drops inboxes past their retention window, returns how many
+    public int purgeExpired() {
+        int purged = 0;
+        for (var entry : inboxes.entrySet()) {
+            if (expired(entry.getValue()) && inboxes.remove(entry.getKey(), entry.getValue())) {
+                purged++;
+            }
+        }
+        return purged;
+    }
+
+    public int size() {
+        return inboxes.size();
+    }
+
+    private static boolean expired(Inbox inbox) {
+        return System.currentTimeMillis() > inbox.expiresAtMillis;
+    }
+}
@@ -0,0 +1,136 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to one client.
+ * Producers (broadcasts from other clients) only ever enqueue here, the
+ * connection's own writer drains it. What happens when it is full is
+ * decided by the OverflowPolicy.
+ */
+public class OutboundQueue {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST, DISCONNECT, BACKPRESSURE
+    }
+
+    private final BlockingQueue<ByteBuffer> frames;
+    private final OverflowPolicy policy;
+    private final long backpressureTimeoutMillis;
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final LongAdder writeCalls = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    public OutboundQueue(int capacity, OverflowPolicy policy, long backpressureTimeoutMillis) {
+        this.frames = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.backpressureTimeoutMillis = backpressureTimeoutMillis;
+    }
+
+    /**
+     * Queues a frame according to the overflow policy.
+     * mayBlock is false on threads that must never wait, like an event loop.
+     * Returns false when the client is too slow and should be disconnected.
+     */
+    public boolean offer(ByteBuffer frame, boolean mayBlock) {
+        if (frames.offer(frame)) {
+            recordDepth();
+            return true;
+        }
+        switch (policy) {
+            case DROP_OLDEST:
+                while (!frames.offer(frame)) {
+                    if (frames.poll() != null) {
+                        dropped.increment();
+                    }
+                }
+                return true;
+            case BACKPRESSURE:
+                if (mayBlock) {
+                    try {
+                        if (frames.offer(frame, backpressureTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                            recordDepth();
+                            return true;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                dropped.increment();
+                return false;
+            default:
+                dropped.increment();
+                return false;
+        }
+    }
+
+    // Bypasses the overflow policy, used for control frames like a close marker
+    public boolean offerControl(ByteBuffer frame) {
+        return frames.offer(frame);
+    }
+
+    public ByteBuffer take() throws InterruptedException {
+        return frames.take();
+    }
+
+    public ByteBuffer poll() {
+        return frames.poll();
+    }
+
+    public ByteBuffer poll(long timeoutNanos) throws InterruptedException {
+        return frames.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    public void clear() {
+        frames.clear();
+    }
+
+    public int depth() {
+        return frames.size();
+    }
+
+    public int maxDepth() {
+        return maxDepth.get();
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    // Called by the writer once per socket write, to see how well lines are coalesced
+    public void recordWrite(long bytes) {
+        writeCalls.increment();
+        bytesWritten.add(bytes);
+        Metrics.get().recordBytesOut(bytes);
+    }
+
+    public long writeCallCount() {
+        return writeCalls.sum();
+    }
+
+    public long bytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    private void recordDepth() {
+        int depth = frames.size();
+        int max;
+        while (depth > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, depth)) {
+            // retry
+        }
+    }
+}
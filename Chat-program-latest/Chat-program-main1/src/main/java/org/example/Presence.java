@@ -0,0 +1,169 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Join and leave notices of all rooms, batched per room.
+ *
+ * The first join or leave in a room starts a short window, everything that
+ * happens in the room until it ends goes out as one digest line:
+ * [alice and bob joined; carol left the room]
+ * Someone who leaves and comes back within the window (a reconnect) or joins
+ * and leaves again is not mentioned at all. A window with a single event
+ * still reads like before, [alice joined the room].
+ *
+ * Rooms with more than maxRoomSize members get no notices at all, members
+ * ask for the roster with /who instead. Only rooms with events waiting have
+ * an entry here, a quiet room costs nothing.
+ *
+ * Eksempel:
+ * java org.example.Server --presence-window-ms=1000 --presence-max-room=100
+ */
+public class Presence {
+    // Names listed in one digest, the rest is counted
+    private static final int MAX_NAMES = 5;
+
+    // What happened in one room during the current window, guarded by the map entry
+    private static final class Batch {
+        // Joined name -> handler, the only joiner does not get the notice about themselves
+        final Map<String, ClientHandler> joined = new LinkedHashMap<>();
+        final Set<String> left = new LinkedHashSet<>();
+    }
+
+    private final long windowMillis;
+    private final int maxRoomSize;
+    private final Map<Room, Batch> pending = new ConcurrentHashMap<>();
+    // Null when the window is 0 and notices go out at once
+    private final ScheduledExecutorService timer;
+    private final LongAdder digests = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+
+    public Presence(ServerConfig config) {
+        this.windowMillis = config.getPresenceWindowMillis();
+        this.maxRoomSize = config.getPresenceMaxRoom();
+        this.timer = windowMillis > 0 ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence-digest");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    // True when the room is too big for join and leave notices
+    public boolean isSuppressed(Room room) {
+        return maxRoomSize > 0 && room.howManyInroom() > maxRoomSize;
+    }
+
+    void joined(Room room, ClientHandler client) {
+        record(room, client.getUsername(), client);
+    }
+
+    void left(Room room, ClientHandler client) {
+        record(room, client.getUsername(), null);
+    }
+
+    // joiner is null for a leave
+    private void record(Room room, String name, ClientHandler joiner) {
+        if (isSuppressed(room)) {
+            suppressed.increment();
+            return;
+        }
+        if (timer == null) {
+            room.deliverNotice(digest(joiner != null ? List.of(name) : List.of(), joiner == null ? List.of(name) : List.of()), joiner);
+            digests.increment();
+            return;
+        }
+        pending.compute(room, (key, batch) -> {
+            if (batch == null) {
+                batch = new Batch();
+                timer.schedule(() -> flush(room), windowMillis, TimeUnit.MILLISECONDS);
+            }
+            if (joiner != null) {
+                // Left and came back within the window, nobody needs to hear about it
+                if (batch.left.remove(name)) {
+                    coalesced.increment();
+                } else {
+                    batch.joined.put(name, joiner);
+                }
+            } else if (batch.joined.remove(name) != null) {
+                coalesced.increment();
+            } else {
+                batch.left.add(name);
+            }
+            return batch;
+        });
+    }
+
+    private void flush(Room room) {
+        Batch batch = pending.remove(room);
+        if (batch == null || (batch.joined.isEmpty() && batch.left.isEmpty())) {
+            return;
+        }
+        // The room may have grown past the limit during the window
+        if (isSuppressed(room)) {
+            suppressed.add(batch.joined.size() + batch.left.size());
+            return;
+        }
+        ClientHandler except = batch.joined.size() == 1 && batch.left.isEmpty()
+                ? batch.joined.values().iterator().next() : null;
+        room.deliverNotice(digest(new ArrayList<>(batch.joined.keySet()), new ArrayList<>(batch.left)), except);
+        digests.increment();
+    }
+
+    static String digest(List<String> joined, List<String> left) {
+        StringBuilder line = new StringBuilder("[");
+        names(line, joined, "joined");
+        if (!joined.isEmpty() && !left.isEmpty()) {
+            line.append("; ");
+        }
+        names(line, left, "left");
+        return line.append(" the room]").toString();
+    }
+
+    private static void names(StringBuilder line, List<String> names, String verb) {
+        if (names.isEmpty()) {
+            return;
+        }
+        int listed = names.size() > MAX_NAMES ? MAX_NAMES - 1 : names.size();
+        for (int i = 0; i < listed; i++) {
+            if (i > 0) {
+                line.append(i == names.size() - 1 ? " and " : ", ");
+            }
+            line.append(names.get(i));
+        }
+        if (listed < names.size()) {
+            line.append(" and ").append(names.size() - listed).append(" others");
+        }
+        line.append(' ').append(verb);
+    }
+
+    // Stops the digest timer, notices still waiting are not sent
+    public void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    public long getDigests() {
+        return digests.sum();
+    }
+
+    // Join and leave pairs of one user that cancelled each other out within a window
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+}
@@ -1,49 +1,211 @@
 package org.example;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
+/**
+ * Members are kept in a copy-on-write set, so a broadcast iterates a
+ * consistent snapshot while others join and leave, and each room only
+ * ever locks itself. Capacity is handed out as seat reservations through
+ * a CAS counter, so two clients can never both take the last seat.
+ *
+ * Rooms are created on demand and most of them sit empty, so an empty
+ * room is kept small: the member set is only allocated on the first join
+ * and the seat counter is a plain field updated through a field updater.
+ * An evicted room has its seat counter set to -1, after that no one can
+ * reserve a seat in it and RoomManager hands out a fresh room instead.
+ *
+ * Messages broadcast to the room are also handed to the HistoryCache, if
+ * the room has one, which keeps the recent frames in the room's ring and
+ * queues the line for the MessageLog. Join and leave notices are not kept.
+ * Each kept message gets the room's next sequence number, which clients
+ * with a resumable session see and ask to resume from.
+ * The room counts what it broadcasts for Metrics in two plain longs, again
+ * through field updaters rather than one LongAdder per room.
+ *
+ * In a cluster the room also hands messages, notices and membership changes
+ * to the Cluster, and the other nodes deliver them to their own members.
+ *
+ * Join and leave notices go through Presence when the room has one, which
+ * sends them as one digest per short window and not at all in big rooms.
+ */
 public class Room {
-    private String roomName;
-    private List<ClientHandler> clients;
-    private int maxCapacity;
+    private static final AtomicIntegerFieldUpdater<Room> SEATS =
+            AtomicIntegerFieldUpdater.newUpdater(Room.class, "seatsTaken");
+    private static final AtomicReferenceFieldUpdater<Room, HistoryCache.Ring> RING =
+            AtomicReferenceFieldUpdater.newUpdater(Room.class, HistoryCache.Ring.class, "historyRing");
+    private static final AtomicLongFieldUpdater<Room> MESSAGES_IN =
+            AtomicLongFieldUpdater.newUpdater(Room.class, "messagesIn");
+    private static final AtomicLongFieldUpdater<Room> MESSAGES_OUT =
+            AtomicLongFieldUpdater.newUpdater(Room.class, "messagesOut");
+    private static final AtomicLongFieldUpdater<Room> SEND_TOKENS =
+            AtomicLongFieldUpdater.newUpdater(Room.class, "sendTokens");
+    private static final int EVICTED = -1;
+    private static final Log.Limit BROADCAST_LOG = Log.limit(Log.Level.DEBUG, 20);
+
+    private final String roomName;
+    private volatile Set<ClientHandler> clients;
+    private volatile int seatsTaken;
+    private final int maxCapacity;
+    private final boolean permanent;
+    // Null when the room's messages are not kept
+    private final HistoryCache history;
+    private final String historyKey;
+    // Recent frames, created by the HistoryCache on the first broadcast and dropped again when the room goes cold
+    private volatile HistoryCache.Ring historyRing;
+    // When the last seat was given back, for idle eviction
+    private volatile long emptySinceMillis = System.currentTimeMillis();
+    // Messages broadcast to the room, and copies of them handed to members
+    private volatile long messagesIn;
+    private volatile long messagesOut;
+    // Number of the last kept message, guarded by this
+    private long lastSeq;
+    // Token bucket for messages broadcast by members, see TokenBucket
+    private volatile long sendTokens;
+    // Null outside a cluster, otherwise the other nodes get everything said and done here
+    private final Cluster cluster;
+    // Null sends every join and leave notice at once
+    private final Presence presence;
 
     public Room(String roomName, int maxCapacity) {
+        this(roomName, maxCapacity, false);
+    }
+
+    // A permanent room (e.g. Lobby) is never evicted
+    public Room(String roomName, int maxCapacity, boolean permanent) {
+        this(roomName, maxCapacity, permanent, null);
+    }
+
+    public Room(String roomName, int maxCapacity, boolean permanent, HistoryCache history) {
+        this(roomName, maxCapacity, permanent, history, null);
+    }
+
+    public Room(String roomName, int maxCapacity, boolean permanent, HistoryCache history, Cluster cluster) {
+        this(roomName, maxCapacity, permanent, history, cluster, null);
+    }
+
+    public Room(String roomName, int maxCapacity, boolean permanent, HistoryCache history, Cluster cluster, Presence presence) {
         this.roomName = roomName;
-        this.clients = new ArrayList<>();
+        this.cluster = cluster;
+        this.presence = presence;
         this.maxCapacity = maxCapacity;
+        this.permanent = permanent;
+        this.history = history;
+        this.historyKey = history != null ? RoomManager.key(roomName) : null;
     }
 
     public boolean addClient(ClientHandler client) {
-        if (clients.size() >= maxCapacity) {
+        if (!tryReserveSeat()) {
             return false;
         }
+        return addReservedClient(client);
+    }
 
-        if (!clients.contains(client)) {
-            clients.add(client);
-            broadcastToRoom("[" + client.getUsername() + " joined the room]", client);
+    // Takes a seat without adding anyone yet, used to move between rooms without losing the old seat first
+    public boolean tryReserveSeat() {
+        while (true) {
+            int taken = seatsTaken;
+            if (taken == EVICTED || taken >= maxCapacity) {
+                return false;
+            }
+            if (SEATS.compareAndSet(this, taken, taken + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void releaseSeat() {
+        if (SEATS.decrementAndGet(this) == 0) {
+            emptySinceMillis = System.currentTimeMillis();
+        }
+    }
+
+    // Fills a seat taken with tryReserveSeat(), the seat is given back if the client already is a member
+    public boolean addReservedClient(ClientHandler client) {
+        if (members().add(client)) {
+            if (presence != null) {
+                presence.joined(this, client);
+            } else {
+                deliverNotice("[" + client.getUsername() + " joined the room]", client);
+            }
+            if (cluster != null) {
+                cluster.memberJoined(roomName, client.getUsername());
+            }
             return true;
         }
+        releaseSeat();
         return false;
     }
 
+    /**
+     * A resumed session takes over the seat of the handler that lost its
+     * connection, without a join or leave notice. False if the old handler
+     * was no longer a member.
+     */
+    boolean replaceClient(ClientHandler old, ClientHandler resumed) {
+        Set<ClientHandler> members = members();
+        if (!members.contains(old)) {
+            return false;
+        }
+        members.add(resumed);
+        members.remove(old);
+        return true;
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
     public boolean removeClient(ClientHandler client) {
-        if (clients.remove(client)) {
-            // Only broadcast if there are still clients in the room
-            if (!clients.isEmpty()) {
-                broadcastToRoom("[" + client.getUsername() + " left the room]", null);
+        Set<ClientHandler> members = clients;
+        if (members != null && members.remove(client)) {
+            releaseSeat();
+            if (presence != null) {
+                presence.left(this, client);
+            } else {
+                deliverNotice("[" + client.getUsername() + " left the room]", null);
+            }
+            if (cluster != null) {
+                cluster.memberLeft(roomName, client.getUsername());
             }
             return true;
         }
         return false;
     }
 
+    /**
+     * Marks the room evicted if nobody has been in it for idleMillis.
+     * Only succeeds while no seat is taken or reserved, so a client that
+     * is joining right now either gets its seat first or sees the eviction.
+     */
+    public boolean tryEvict(long nowMillis, long idleMillis) {
+        return !permanent
+                && seatsTaken == 0
+                && nowMillis - emptySinceMillis >= idleMillis
+                && SEATS.compareAndSet(this, 0, EVICTED);
+    }
+
+    public boolean isEvicted() {
+        return seatsTaken == EVICTED;
+    }
+
+    public boolean isPermanent() {
+        return permanent;
+    }
+
     public boolean isRoomFull() {
-        return clients.size() >= maxCapacity;
+        return seatsTaken >= maxCapacity;
     }
 
     public int howManyInroom() {
-        return clients.size();
+        Set<ClientHandler> members = clients;
+        return members == null ? 0 : members.size();
     }
 
     public int getMaxCapacity() {
@@ -52,29 +214,160 @@ public class Room {
 
     public List<String> clientNamesInRoom() {
         List<String> names = new ArrayList<>();
-        for (ClientHandler client : clients) {
+        for (ClientHandler client : snapshot()) {
             names.add(client.getUsername());
         }
         return names;
     }
 
-    public void broadcastToRoom(String message, ClientHandler sender) {
-        // Log til server
-        System.out.println("Broadcasting to " + roomName + " (" + clients.size() + " clients): " + message);
+    // Returns the message's sequence number, 0 if nobody was there to get it
+    public long broadcastToRoom(String message, ClientHandler sender) {
+        return broadcastToRoom(message, sender, null);
+    }
 
-        for (ClientHandler clientHandler : clients) {
+    // echo is the sender's own copy, numbered like the message and queued in the same order as the others get it
+    public long broadcastToRoom(String message, ClientHandler sender, String echo) {
+        MESSAGES_IN.incrementAndGet(this);
+        long seq = deliver(message, sender, true, echo);
+        if (cluster != null) {
+            cluster.publishMessage(roomName, message);
+        }
+        return seq;
+    }
+
+    // A join or leave notice, for the members here but the one it is about, and for the other nodes
+    void deliverNotice(String notice, ClientHandler except) {
+        // Nobody left to tell here when the last member leaves
+        deliver(notice, except, false, null);
+        if (cluster != null) {
+            cluster.publishNotice(roomName, notice);
+        }
+    }
+
+    // A notice only for the members on this node, not numbered, kept or passed to the other nodes
+    void deliverLocalNotice(String notice, ClientHandler except) {
+        deliver(notice, except, false, null);
+    }
+
+    // A message or notice from a member on another node, only for the members here
+    void deliverFromCluster(String message, boolean keep) {
+        if (keep) {
+            MESSAGES_IN.incrementAndGet(this);
+        }
+        deliver(message, null, keep, null);
+    }
+
+    // Sends to every member but the sender, keep says whether it is numbered and goes into the room's history
+    private long deliver(String message, ClientHandler sender, boolean keep, String echo) {
+        Set<ClientHandler> recipients = snapshot();
+        int members = recipients.size();
+        // Log til server, debug only and at most a few lines a second
+        if (BROADCAST_LOG.allow()) {
+            BROADCAST_LOG.log("Broadcasting to {} ({} clients): {}", roomName, members, message);
+        }
+        if (members == 0) {
+            return 0;
+        }
+        // Encoded once for the whole room, every member gets a view of the same bytes
+        boolean direct = members >= SharedFrame.DIRECT_MIN_RECIPIENTS;
+        if (!keep) {
+            fanOut(recipients, SharedFrame.ofLine(message, direct), sender);
+            return 0;
+        }
+        // Numbered, recorded and handed out under one lock, so the history ring holds the numbers
+        // in order and every member is queued #SEQ 5 before #SEQ 6. Queueing does not wait for the
+        // socket, only a full queue under BACKPRESSURE holds up the room, as it holds up the sender.
+        synchronized (this) {
+            long seq = ++lastSeq;
+            SharedFrame frame = SharedFrame.ofLine(message, direct, seq);
+            if (history != null) {
+                // Only kept in memory and queued for the log writer, no disk work here
+                history.record(this, message, frame);
+            }
+            if (echo != null && sender != null) {
+                sender.sendFrame(SharedFrame.ofLine(echo, false, seq));
+            }
+            fanOut(recipients, frame, sender);
+            return seq;
+        }
+    }
+
+    private void fanOut(Set<ClientHandler> recipients, SharedFrame frame, ClientHandler sender) {
+        if (recipients.size() == 1 && sender != null && recipients.contains(sender)) {
+            return;
+        }
+
+        // Iterator is a snapshot, members joining or leaving meanwhile don't disturb it
+        long fanOutStart = System.nanoTime();
+        int sent = 0;
+        for (ClientHandler clientHandler : recipients) {
             if (clientHandler != sender) { // Don't send to sender
-                clientHandler.sendMessage(message);
+                clientHandler.sendFrame(frame);
+                sent++;
             }
         }
+        MESSAGES_OUT.addAndGet(this, sent);
+        Metrics.get().recordBroadcast(sent, System.nanoTime() - fanOutStart);
+    }
+
+    // take goes into debt instead of refusing, for senders that are paused rather than dropped
+    long takeSendToken(TokenBucket limit, long now, boolean take) {
+        return take ? limit.take(SEND_TOKENS, this, now) : limit.tryTake(SEND_TOKENS, this, now);
+    }
+
+    public long getMessagesIn() {
+        return messagesIn;
+    }
+
+    public long getMessagesOut() {
+        return messagesOut;
     }
 
     public String getRoomName() {
         return roomName;
     }
 
+    // Lower-cased name the history is stored under
+    String getHistoryKey() {
+        return historyKey;
+    }
+
+    HistoryCache.Ring historyRing() {
+        return historyRing;
+    }
+
+    // Returns the ring that is in place now, which is not the given one if another thread was first
+    HistoryCache.Ring installHistoryRing(HistoryCache.Ring ring) {
+        return RING.compareAndSet(this, null, ring) ? ring : historyRing;
+    }
+
+    void clearHistoryRing(HistoryCache.Ring ring) {
+        RING.compareAndSet(this, ring, null);
+    }
+
     public boolean containsClient(ClientHandler client) {
-        return clients.contains(client);
+        Set<ClientHandler> members = clients;
+        return members != null && members.contains(client);
+    }
+
+    private Set<ClientHandler> snapshot() {
+        Set<ClientHandler> members = clients;
+        return members == null ? Collections.emptySet() : members;
+    }
+
+    // Allocated on the first join only
+    private Set<ClientHandler> members() {
+        Set<ClientHandler> members = clients;
+        if (members == null) {
+            synchronized (this) {
+                members = clients;
+                if (members == null) {
+                    members = new CopyOnWriteArraySet<>();
+                    clients = members;
+                }
+            }
+        }
+        return members;
     }
 
-}
\ No newline at end of file
+}
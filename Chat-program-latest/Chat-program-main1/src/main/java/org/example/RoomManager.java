@@ -1,43 +1,186 @@
 package org.example;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class RoomManager {
+/**
+ * Registry of all rooms, looked up by name through a case-insensitive hash index.
+ *
+ * Rooms are created the first time someone joins them and removed again
+ * once they have been empty for the idle timeout, except the permanent rooms
+ * from the config (Lobby by default). The index is split into shards by
+ * name hash: each shard is a small map of its own, so growing to a million
+ * rooms never rehashes one huge table, and the eviction sweep works
+ * through one shard at a time.
+ *
+ * Rooms created here share one MessageLog, which keeps what is said in them,
+ * and one HistoryCache in front of it that answers most joins from memory.
+ * In a cluster they also share the Cluster, which carries what happens in
+ * them to the other nodes. Their join and leave notices all go through one
+ * Presence, which batches them.
+ */
+public final class RoomManager {
+    public static final int MAX_ROOM_NAME_LENGTH = 64;
 
-    private List<Room> rooms;
+    public enum JoinResult {
+        JOINED, FULL, INVALID_NAME, TOO_MANY_ROOMS
+    }
+
+    // How /rooms lists them: permanent rooms first, then by name
+    public static final Comparator<Room> LISTING_ORDER = Comparator.comparing((Room room) -> !room.isPermanent())
+            .thenComparing(Room::getRoomName, String.CASE_INSENSITIVE_ORDER);
+
+    private final ConcurrentHashMap<String, Room>[] shards;
+    private final int shardShift;
+    private final AtomicInteger roomCount = new AtomicInteger();
+    private final int defaultCapacity;
+    private final int maxRooms;
+    private final long idleMillis;
+    private final String defaultRoom;
+    // Null when the message log is turned off
+    private final MessageLog messageLog;
+    private final HistoryCache historyCache;
+    // Null when this server is not part of a cluster
+    private final Cluster cluster;
+    private final Presence presence;
+    // Sweeps idle rooms, and drops cold history rings when the HistoryCache is over its budget
+    private final ScheduledExecutorService evictor;
 
     public RoomManager() {
-        this.rooms = new ArrayList<Room>();
-        // Ændre til ordentlige room navne:
-        rooms.add(new Room("Lobby", 5));
-        rooms.add(new Room("testRoom1", 5));
-        rooms.add(new Room("testRoom2", 5));
-        rooms.add(new Room("testRoom3", 5));
-        rooms.add(new Room("testRoom4", 5));
+        this(new ServerConfig());
+    }
+
+    public RoomManager(ServerConfig config) {
+        this(config, null);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RoomManager(ServerConfig config, Cluster cluster) {
+        int shardCount = Integer.highestOneBit(config.getRoomShards() * 2 - 1);
+        this.shards = new ConcurrentHashMap[shardCount];
+        this.shardShift = 32 - Integer.numberOfTrailingZeros(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new ConcurrentHashMap<>();
+        }
+        this.defaultCapacity = config.getRoomCapacity();
+        this.maxRooms = config.getMaxRooms();
+        this.idleMillis = TimeUnit.SECONDS.toMillis(config.getRoomIdleEvictSeconds());
+        this.defaultRoom = config.getPermanentRooms().get(0).trim();
+        this.messageLog = config.isMessageLogEnabled() ? new MessageLog(config) : null;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "room-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.historyCache = new HistoryCache(config.getHistoryReplay(), config.getResumeBuffer(),
+                config.getHistoryCacheMb() * 1024 * 1024, messageLog, evictor);
+        this.cluster = cluster;
+        this.presence = new Presence(config);
+        for (String name : config.getPermanentRooms()) {
+            addRoom(new Room(name.trim(), defaultCapacity, true, historyCache, cluster, presence));
+        }
+        startEvictionTimer();
+    }
+
+    // Returns false if a room with that name (in any case) already exists
+    public boolean addRoom(Room room) {
+        if (shardFor(key(room.getRoomName())).putIfAbsent(key(room.getRoomName()), room) != null) {
+            return false;
+        }
+        roomCount.incrementAndGet();
+        return true;
     }
 
     public Room findRoomByName(String roomName) {
-        for(Room room : rooms) {
-            if (room.getRoomName().equalsIgnoreCase(roomName)) {
-                return room;
-            }
+        if (roomName == null) {
+            return null;
         }
-        return null;
+        String key = key(roomName);
+        return shardFor(key).get(key);
+    }
+
+    // Lower-cased with Locale.ROOT, so the index does not depend on the server's default locale
+    static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    // The room where clients land after login
+    public String getDefaultRoomName() {
+        return defaultRoom;
     }
 
     public boolean joinRoom(ClientHandler client, String roomName) {
-        Room room = findRoomByName(roomName);
-        if (room == null){
-            return false;
+        return joinRoom(client, roomName, 0) == JoinResult.JOINED;
+    }
+
+    /**
+     * Joins the room, creating it first if it does not exist.
+     * capacity is only used when the room is created here, 0 means the configured default.
+     */
+    public JoinResult joinRoom(ClientHandler client, String roomName, int capacity) {
+        String name = roomName == null ? "" : roomName.trim();
+        if (name.isEmpty() || name.length() > MAX_ROOM_NAME_LENGTH || name.chars().anyMatch(Character::isISOControl)) {
+            return JoinResult.INVALID_NAME;
         }
+        String key = key(name);
+        ConcurrentHashMap<String, Room> shard = shardFor(key);
+        while (true) {
+            Room room = shard.get(key);
+            if (room == null) {
+                if (roomCount.incrementAndGet() > maxRooms) {
+                    roomCount.decrementAndGet();
+                    return JoinResult.TOO_MANY_ROOMS;
+                }
+                Room created = new Room(name, capacity > 0 ? capacity : defaultCapacity, false, historyCache, cluster, presence);
+                room = shard.putIfAbsent(key, created);
+                if (room == null) {
+                    room = created;
+                } else {
+                    roomCount.decrementAndGet();
+                }
+            }
+            if (moveClient(client, client.getCurrentRoom(), room)) {
+                return JoinResult.JOINED;
+            }
+            if (!room.isEvicted()) {
+                return JoinResult.FULL;
+            }
+            // Evicted between the lookup and the join, make sure it is gone and go again
+            if (shard.remove(key, room)) {
+                roomCount.decrementAndGet();
+            }
+        }
+    }
 
-        if (room.isRoomFull()) {
+    /**
+     * Moves a client from one room to another as one step.
+     * The seat in the target is reserved before the old room is left, so if
+     * the target is full the client simply stays where it was.
+     */
+    public boolean moveClient(ClientHandler client, Room from, Room to) {
+        if (from == to && to.containsClient(client)) {
+            return true;
+        }
+        if (!to.tryReserveSeat()) {
             return false;
         }
 
-        leaveAllRooms(client);
-        return room.addClient(client);
+        if (from != null) {
+            from.removeClient(client);
+        }
+        if (!to.addReservedClient(client)) {
+            return false;
+        }
+        client.setCurrentRoom(to);
+        return true;
     }
 
     public boolean leaveRoom(ClientHandler client, String roomName) {
@@ -48,26 +191,127 @@ public class RoomManager {
         return false;
     }
 
+    // A client is only ever in its current room, no need to look through every room
     public void leaveAllRooms(ClientHandler client) {
-        for (Room room : rooms) {
+        Room room = client.getCurrentRoom();
+        if (room != null) {
             room.removeClient(client);
         }
     }
 
+    // The last messages said in the room, oldest first, for replay to someone who just joined
+    public List<SharedFrame> recentMessages(Room room) {
+        return historyCache.recent(room);
+    }
+
+    // What a resumed session missed in the room, see HistoryCache.since()
+    public List<SharedFrame> messagesSince(Room room, long seq) {
+        return historyCache.since(room, seq);
+    }
+
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
+
+    public Presence getPresence() {
+        return presence;
+    }
+
+    public HistoryCache getHistoryCache() {
+        return historyCache;
+    }
+
+    public int getRoomCount() {
+        return roomCount.get();
+    }
+
+    // Removes every non-permanent room that has been empty for the idle timeout, returns how many
+    public int evictIdleRooms() {
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        for (ConcurrentHashMap<String, Room> shard : shards) {
+            for (Room room : shard.values()) {
+                if (room.tryEvict(now, idleMillis) && shard.remove(key(room.getRoomName()), room)) {
+                    roomCount.decrementAndGet();
+                    evicted++;
+                    historyCache.forget(room);
+                    if (messageLog != null) {
+                        messageLog.release(key(room.getRoomName()));
+                    }
+                }
+            }
+        }
+        return evicted;
+    }
+
     public List<String> getRoomNames() {
         List<String> names = new ArrayList<>();
-        for (Room room : rooms) {
+        for (Room room : getAllRooms()) {
             names.add(room.getRoomName());
         }
         return names;
     }
 
+    // Snapshot sorted by name, permanent rooms first. Copies every room, see firstRooms() for a listing.
     public List<Room> getAllRooms() {
-        return rooms;
+        List<Room> all = new ArrayList<>(roomCount.get());
+        for (ConcurrentHashMap<String, Room> shard : shards) {
+            all.addAll(shard.values());
+        }
+        all.sort(LISTING_ORDER);
+        return all;
+    }
+
+    /**
+     * The first limit rooms in the given order. Walks the shards keeping
+     * only the best limit so far, so a million rooms cost a pass over them
+     * and a heap of limit entries, not a copy and a sort of all of them.
+     */
+    public List<Room> firstRooms(int limit, Comparator<Room> order) {
+        // The worst of the best so far on top, ready to be pushed out
+        PriorityQueue<Room> best = new PriorityQueue<>(limit + 1, order.reversed());
+        for (ConcurrentHashMap<String, Room> shard : shards) {
+            for (Room room : shard.values()) {
+                if (best.size() < limit) {
+                    best.add(room);
+                } else if (limit > 0 && order.compare(room, best.peek()) < 0) {
+                    best.poll();
+                    best.add(room);
+                }
+            }
+        }
+        List<Room> result = new ArrayList<>(best);
+        result.sort(order);
+        return result;
     }
 
 
     public List<Room> getRooms() {
-        return rooms;
+        return getAllRooms();
+    }
+
+    // Top bits of a multiplicative hash: the maps inside a shard index by the low bits, which stay evenly spread
+    private ConcurrentHashMap<String, Room> shardFor(String key) {
+        return shardShift == 32 ? shards[0] : shards[(key.hashCode() * 0x9E3779B9) >>> shardShift];
+    }
+
+    // Stops the evictor and the presence timer and writes out the message log, for a server that is shut down
+    public void close() {
+        evictor.shutdownNow();
+        presence.close();
+        if (messageLog != null) {
+            messageLog.close();
+        }
+    }
+
+    private void startEvictionTimer() {
+        // Sweeping a few times per timeout keeps an idle room around for at most 1.25x the timeout
+        long period = Math.max(1000, idleMillis / 4);
+        evictor.scheduleWithFixedDelay(() -> {
+            int evicted = evictIdleRooms();
+            if (evicted > 0) {
+                Log.info("Evicted {} idle rooms, {} left", evicted, roomCount.get());
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
     }
-}
\ No newline at end of file
+}
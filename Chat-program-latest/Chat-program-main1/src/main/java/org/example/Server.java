@@ -1,14 +1,68 @@
 package org.example;
+import java.io.IOException;
 import java.net.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
-public class Server {
-    private List<ClientHandler> clients = new ArrayList<>();
+public final class Server {
+    // Connect and disconnect lines, at most this many a second during a connection storm
+    private static final Log.Limit ACCEPT_LOG = Log.limit(Log.Level.INFO, 50);
+    private static final Log.Limit CONNECTION_LOG = Log.limit(Log.Level.INFO, 50);
+    // Handlers add and remove themselves from many threads at once
+    private Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
+    // Case-insensitive username -> client, one entry per logged in name, so names are unique
+    private final Map<String, ClientHandler> clientsByUsername = new ConcurrentHashMap<>();
     private RoomManager roomManager;
+    private final ServerConfig config;
+    // Private messages for users who are reconnecting
+    private final OfflineMessages offlineMessages;
+    private final FileRelay fileRelay;
+    // Null unless the server runs as one node of a cluster
+    private final Cluster cluster;
+    // Session token -> the handler that holds the session, connected or waiting to be resumed
+    private final Map<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom tokens = new SecureRandom();
+    // Null when sessions are turned off
+    private final ScheduledExecutorService sessionExpiry;
+    private final LongAdder sessionsResumed = new LongAdder();
+    private final LongAdder sessionsExpired = new LongAdder();
+    // Null when heartbeats and idle timeouts are all turned off
+    private final IdleReaper idleReaper;
+    private Thread statusThread;
 
     public Server() {
-        this.roomManager = new RoomManager();
+        this(new ServerConfig());
+    }
+
+    public Server(ServerConfig config) {
+        this.config = config;
+        this.cluster = config.isClustered() ? new Cluster(this, config) : null;
+        this.roomManager = new RoomManager(config, cluster);
+        this.offlineMessages = new OfflineMessages(config.getOfflineBufferSize(),
+                TimeUnit.SECONDS.toMillis(config.getOfflineRetentionSeconds()));
+        this.fileRelay = new FileRelay(this, config);
+        this.sessionExpiry = config.getResumeWindowSeconds() > 0 ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-expiry");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        this.idleReaper = config.isIdleCheckEnabled() ? new IdleReaper() : null;
+        if (idleReaper != null) {
+            idleReaper.start();
+        }
+        Metrics.get().bind(this);
         startStatusThread();
     }
 
@@ -16,36 +70,203 @@ public class Server {
         return roomManager;
     }
 
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public FileRelay getFileRelay() {
+        return fileRelay;
+    }
+
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    public IdleReaper getIdleReaper() {
+        return idleReaper;
+    }
+
+    /**
+     * Stops the background threads this server and its RoomManager started.
+     * For servers that are built and thrown away within one JVM, like the
+     * benchmarks and the comparison tools. Connections are left open.
+     */
+    public void close() {
+        roomManager.close();
+        fileRelay.close();
+        if (sessionExpiry != null) {
+            sessionExpiry.shutdownNow();
+        }
+        if (idleReaper != null) {
+            idleReaper.close();
+        }
+        statusThread.interrupt();
+    }
+
     public void addClient(ClientHandler client) {
         clients.add(client);
-        System.out.println("Client added. Total clients: " + clients.size());
+        if (CONNECTION_LOG.allow()) {
+            CONNECTION_LOG.log("Client added. Total clients: {}", clients.size());
+        }
     }
 
     public void removeClient(ClientHandler client) {
         clients.remove(client);
-        System.out.println("Client removed. Total clients: " + clients.size());
+        releaseUsername(client.getUsername(), client);
+        if (client.isLoggedIn() && config.getOfflineBufferSize() > 0) {
+            offlineMessages.expect(client.getUsername());
+        }
+        if (CONNECTION_LOG.allow()) {
+            CONNECTION_LOG.log("Client removed. Total clients: {}", clients.size());
+        }
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    // Live view, for reading statistics
+    public Set<ClientHandler> getClients() {
+        return Collections.unmodifiableSet(clients);
+    }
+
+    public int getOfflineInboxCount() {
+        return offlineMessages.size();
     }
 
     public ClientHandler findClientByUsername(String username) {
-        for (ClientHandler client : clients) {
-            System.out.println("  - '" + client.getUsername() + "'");
-            if (client.getUsername().equalsIgnoreCase(username)) {
-                return client;
+        return username == null ? null : clientsByUsername.get(RoomManager.key(username));
+    }
+
+    // Takes the name for this client. False if another client already has it, in any case, also on another node.
+    public boolean claimUsername(String username, ClientHandler client) {
+        if (cluster != null && cluster.isTakenElsewhere(username)) {
+            return false;
+        }
+        ClientHandler owner = clientsByUsername.putIfAbsent(RoomManager.key(username), client);
+        if (owner == null && cluster != null) {
+            cluster.userOnline(username);
+        }
+        return owner == null || owner == client;
+    }
+
+    // The new name is claimed before the old one is given up, so a failed rename keeps the old name
+    public boolean renameClient(ClientHandler client, String oldName, String newName) {
+        if (!claimUsername(newName, client)) {
+            return false;
+        }
+        if (oldName != null && !RoomManager.key(oldName).equals(RoomManager.key(newName))) {
+            releaseUsername(oldName, client);
+        }
+        return true;
+    }
+
+    // Only removes the entry if it still belongs to this client
+    public void releaseUsername(String username, ClientHandler client) {
+        if (username != null && clientsByUsername.remove(RoomManager.key(username), client) && cluster != null) {
+            cluster.userOffline(username);
+        }
+    }
+
+    public boolean isResumeEnabled() {
+        return sessionExpiry != null;
+    }
+
+    // A new resumable session for a client that just logged in, returns its token
+    public String openSession(ClientHandler client) {
+        byte[] bytes = new byte[16];
+        tokens.nextBytes(bytes);
+        String token = HexFormat.of().formatHex(bytes);
+        sessions.put(token, client);
+        return token;
+    }
+
+    /**
+     * The client's connection is gone, its room and name stay for the
+     * resume window. Does nothing if the session was resumed meanwhile.
+     */
+    public void detachSession(String token, ClientHandler client) {
+        if (sessions.get(token) != client) {
+            return;
+        }
+        // Private messages wait in the offline inbox until the session is resumed
+        if (config.getOfflineBufferSize() > 0) {
+            offlineMessages.expect(client.getUsername());
+        }
+        sessionExpiry.schedule(() -> {
+            if (sessions.remove(token, client)) {
+                sessionsExpired.increment();
+                client.release();
+            }
+        }, config.getResumeWindowSeconds(), TimeUnit.SECONDS);
+    }
+
+    // The handler holding the session, which is no longer registered under it. Null for an unknown or expired token.
+    public ClientHandler takeSession(String token) {
+        return token == null ? null : sessions.remove(token);
+    }
+
+    // Called by the resumed handler once it has taken over
+    public void resumeSession(String token, ClientHandler old, ClientHandler resumed) {
+        sessions.put(token, resumed);
+        clients.remove(old);
+        String username = old.getUsername();
+        if (!clientsByUsername.replace(RoomManager.key(username), old, resumed)) {
+            claimUsername(username, resumed);
+        }
+        sessionsResumed.increment();
+    }
+
+    // Logged out with /quit, nothing to resume
+    public void closeSession(String token, ClientHandler client) {
+        sessions.remove(token, client);
+    }
+
+    public int getDetachedSessionCount() {
+        int count = 0;
+        for (ClientHandler client : sessions.values()) {
+            if (client.isDetached()) {
+                count++;
             }
         }
-        return null;
+        return count;
+    }
+
+    public long getSessionsResumed() {
+        return sessionsResumed.sum();
+    }
+
+    public long getSessionsExpired() {
+        return sessionsExpired.sum();
+    }
+
+    // Keeps a private message for a user who disconnected recently. False if there is no such user.
+    public boolean offerOfflineMessage(String username, String line) {
+        return offlineMessages.offer(username, line);
+    }
+
+    // Sends everything kept for the user if they are logged in now, a detached session keeps it until it is resumed
+    public void deliverOfflineMessages(String username) {
+        ClientHandler client = findClientByUsername(username);
+        if (client == null || client.isDetached()) {
+            return;
+        }
+        for (String line : offlineMessages.drain(username)) {
+            client.sendMessage(line);
+        }
     }
 
     // Start a thread that prints server statistics every 5 minutes
     private void startStatusThread() {
-        Thread statusThread = new Thread(() -> {
+        statusThread = new Thread(() -> {
             while (true) {
                 try {
                     Thread.sleep(300000); // 5 minutes
 
-                    // Print statistics
-                    System.out.println("\n=== SERVER STATUS ===");
-                    System.out.println("Total clients: " + clients.size());
+                    int expired = offlineMessages.purgeExpired();
+
+                    // Print statistics, the same text as /metrics
+                    Log.info("\n=== SERVER STATUS ===\n{}Offline inboxes expired: {}", Metrics.get().render(), expired);
 
 
                 } catch (InterruptedException e) {
@@ -57,22 +278,61 @@ public class Server {
         statusThread.start();
     }
 
-    public static void main(String[] args) {
-        Server server = new Server();
+    // One task per connection. Platform threads for THREAD mode, virtual threads for VIRTUAL mode.
+    public static ExecutorService createExecutor(ServerConfig.Mode mode) {
+        if (mode == ServerConfig.Mode.VIRTUAL) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("client-", 0).factory());
+    }
 
+    // Accepts until the channel is closed and runs every ClientHandler on the given executor
+    public void serveBlocking(ServerSocketChannel serverChannel, ExecutorService executor) throws IOException {
         try {
-            ServerSocket serverSocket = new ServerSocket(5001);
-            System.out.println("Chat Server listening on port 5001");
-            System.out.println("Available rooms: Lobby, testRoom1, testRoom2, testRoom3, testRoom4)");
-
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket.getInetAddress());
+                SocketChannel channel = serverChannel.accept();
+                Metrics.get().recordAccept();
+                if (ACCEPT_LOG.allow()) {
+                    ACCEPT_LOG.log("New client connected: {}", channel.socket().getInetAddress());
+                }
+
+                SocketConnection connection = new SocketConnection(channel, config);
+                // Writer and reader run as two tasks, so a slow receiver never holds up whoever broadcasts to it
+                executor.execute(connection::runWriter);
+                executor.execute(new ClientHandler(connection, this));
+            }
+        } catch (ClosedChannelException e) {
+            // Server was stopped
+        }
+    }
 
-                ClientHandler clientHandler = new ClientHandler(clientSocket, server);
-                Thread clientThread = new Thread(clientHandler);
-                clientThread.start();
+    public static void main(String[] args) {
+        ServerConfig config = ServerConfig.fromArgs(args);
+        Log.setLevel(config.getLogLevel());
+        Server server = new Server(config);
+
+        try {
+            Log.info("Permanent rooms: {}, others are created on join", String.join(", ", config.getPermanentRooms()));
+            if (config.getFilePort() > 0) {
+                server.getFileRelay().listen(config.getFilePort());
             }
+            if (server.getCluster() != null) {
+                server.getCluster().start();
+            }
+            Metrics.get().registerMBean();
+            if (config.getMetricsPort() > 0) {
+                MetricsEndpoint.start(Metrics.get(), config.getMetricsPort());
+            }
+            if (config.getMode() == ServerConfig.Mode.NIO) {
+                new NioServer(server, config.getPort(), config.getEventLoops()).run();
+                return;
+            }
+
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(config.getPort()));
+            Log.info("Chat Server ({}) listening on port {}", config.getMode(), config.getPort());
+
+            server.serveBlocking(serverChannel, createExecutor(config.getMode()));
         } catch (Exception e) {
             e.printStackTrace();
         }
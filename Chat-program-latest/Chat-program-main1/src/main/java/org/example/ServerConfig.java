@@ -0,0 +1,223 @@
+package org.example;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Startup options for Server, given as --key=value arguments.
+ *
+ * Eksempel:
+ * java org.example.Server --mode=nio --port=5001 --event-loops=4
+ * java org.example.Server --mode=virtual
+ * java org.example.Server --outbound-capacity=256 --overflow-policy=disconnect
+ * java org.example.Server --max-write-batch=64 --flush-delay-us=200
+ * java org.example.Server --rooms=Lobby,Help --room-capacity=500 --room-idle-evict-s=600
+ * java org.example.Server --offline-buffer-size=50 --offline-retention-s=120
+ * java org.example.Server --file-port=5002 --file-rate-kb-s=2048 --file-max-mb=512
+ * java org.example.Server --file-store-dir=/var/chat/files --file-store-max-mb=20480
+ * java org.example.Server --message-log-dir=/var/chat/log --history-replay=50 --history-cache-mb=256
+ * java org.example.Server --metrics-port=9100
+ * java org.example.Server --log-level=debug
+ * java org.example.Server --node=a --cluster-config=cluster.conf
+ * java org.example.Server --client-rate=20 --client-burst=40 --room-rate=500 --room-burst=1000 --rate-limit-policy=drop
+ * java org.example.Server --resume-window-s=120 --resume-buffer=500
+ * java org.example.Server --presence-window-ms=1000 --presence-max-room=100
+ * java org.example.Server --heartbeat-s=15 --read-timeout-s=45 --write-timeout-s=30
+ */
+public class ServerConfig {
+
+    public enum Mode {
+        THREAD, VIRTUAL, NIO
+    }
+
+    private int port = 5001;
+    private Mode mode = Mode.THREAD;
+    private int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int outboundCapacity = 1024;
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+    private long backpressureTimeoutMillis = 1000;
+    private int maxWriteBatch = 64;
+    private long flushDelayMicros = 0;
+    private List<String> permanentRooms = List.of("Lobby");
+    private int roomCapacity = 100;
+    private long roomIdleEvictSeconds = 300;
+    private int roomShards = 64;
+    private int maxRooms = 1_000_000;
+    private int offlineBufferSize = 100;
+    private long offlineRetentionSeconds = 300;
+    // 0 means the chat port + 1
+    private int filePort = 0;
+    private long fileRateKbPerSecond = 8 * 1024;
+    private long fileMaxMb = 4 * 1024;
+    private long fileOfferTimeoutSeconds = 60;
+    private String fileStoreDir = "file-store";
+    private long fileStoreMaxMb = 10 * 1024;
+    // Empty turns the message log off
+    private String messageLogDir = "message-log";
+    private long messageLogSegmentMb = 64;
+    private boolean messageLogFsync = true;
+    private int messageLogQueue = 64 * 1024;
+    private int historyReplay = 20;
+    private long historyCacheMb = 64;
+    // 0 means the chat port + 2
+    private int metricsPort = 0;
+    private Log.Level logLevel = Log.Level.INFO;
+    // Messages a second, 0 turns the limit off
+    private double clientRate = 50;
+    private int clientBurst = 100;
+    private double roomRate = 1000;
+    private int roomBurst = 2000;
+    private TokenBucket.Policy rateLimitPolicy = TokenBucket.Policy.PAUSE;
+    // Empty runs a single server without a cluster
+    private String clusterConfig = "";
+    private String nodeName = "";
+    // 0 turns resumable sessions off
+    private long resumeWindowSeconds = 60;
+    private int resumeBuffer = 256;
+    // 0 sends every join and leave notice at once
+    private long presenceWindowMillis = 500;
+    // 0 never suppresses
+    private int presenceMaxRoom = 200;
+    // 0 turns each of them off
+    private long heartbeatSeconds = 30;
+    private long readTimeoutSeconds = 90;
+    private long writeTimeoutSeconds = 60;
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --key=value but got: " + arg);
+            }
+            String key = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (key) {
+                case "port": config.port = Integer.parseInt(value); break;
+                case "mode": config.mode = Mode.valueOf(value.trim().toUpperCase(Locale.ROOT)); break;
+                case "event-loops": config.eventLoops = Math.max(1, Integer.parseInt(value)); break;
+                case "outbound-capacity": config.outboundCapacity = Math.max(1, Integer.parseInt(value)); break;
+                case "overflow-policy": config.overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(value.trim().toUpperCase(Locale.ROOT)); break;
+                case "backpressure-timeout-ms": config.backpressureTimeoutMillis = Long.parseLong(value); break;
+                case "max-write-batch": config.maxWriteBatch = Math.max(1, Integer.parseInt(value)); break;
+                case "flush-delay-us": config.flushDelayMicros = Math.max(0, Long.parseLong(value)); break;
+                case "rooms": config.permanentRooms = List.of(value.split(",")); break;
+                case "room-capacity": config.roomCapacity = Math.max(1, Integer.parseInt(value)); break;
+                case "room-idle-evict-s": config.roomIdleEvictSeconds = Math.max(1, Long.parseLong(value)); break;
+                case "room-shards": config.roomShards = Math.max(1, Integer.parseInt(value)); break;
+                case "max-rooms": config.maxRooms = Math.max(1, Integer.parseInt(value)); break;
+                case "offline-buffer-size": config.offlineBufferSize = Math.max(0, Integer.parseInt(value)); break;
+                case "offline-retention-s": config.offlineRetentionSeconds = Math.max(0, Long.parseLong(value)); break;
+                case "file-port": config.filePort = Integer.parseInt(value); break;
+                case "metrics-port": config.metricsPort = Integer.parseInt(value); break;
+                case "client-rate": config.clientRate = Math.max(0, Double.parseDouble(value)); break;
+                case "client-burst": config.clientBurst = Math.max(1, Integer.parseInt(value)); break;
+                case "room-rate": config.roomRate = Math.max(0, Double.parseDouble(value)); break;
+                case "room-burst": config.roomBurst = Math.max(1, Integer.parseInt(value)); break;
+                case "cluster-config": config.clusterConfig = value; break;
+                case "node": config.nodeName = value.trim(); break;
+                case "rate-limit-policy": config.rateLimitPolicy = TokenBucket.Policy.valueOf(value.trim().toUpperCase(Locale.ROOT)); break;
+                case "log-level": config.logLevel = Log.Level.valueOf(value.trim().toUpperCase(Locale.ROOT)); break;
+                case "file-rate-kb-s": config.fileRateKbPerSecond = Math.max(0, Long.parseLong(value)); break;
+                case "file-max-mb": config.fileMaxMb = Math.max(1, Long.parseLong(value)); break;
+                case "file-offer-timeout-s": config.fileOfferTimeoutSeconds = Math.max(1, Long.parseLong(value)); break;
+                case "file-store-dir": config.fileStoreDir = value; break;
+                case "file-store-max-mb": config.fileStoreMaxMb = Math.max(1, Long.parseLong(value)); break;
+                case "message-log-dir": config.messageLogDir = value.trim(); break;
+                case "message-log-segment-mb": config.messageLogSegmentMb = Math.max(1, Long.parseLong(value)); break;
+                case "message-log-fsync": config.messageLogFsync = Boolean.parseBoolean(value.trim()); break;
+                case "message-log-queue": config.messageLogQueue = Math.max(1, Integer.parseInt(value)); break;
+                case "history-replay": config.historyReplay = Math.max(0, Integer.parseInt(value)); break;
+                case "resume-window-s": config.resumeWindowSeconds = Math.max(0, Long.parseLong(value)); break;
+                case "presence-window-ms": config.presenceWindowMillis = Math.max(0, Long.parseLong(value)); break;
+                case "presence-max-room": config.presenceMaxRoom = Math.max(0, Integer.parseInt(value)); break;
+                case "heartbeat-s": config.heartbeatSeconds = Math.max(0, Long.parseLong(value)); break;
+                case "read-timeout-s": config.readTimeoutSeconds = Math.max(0, Long.parseLong(value)); break;
+                case "write-timeout-s": config.writeTimeoutSeconds = Math.max(0, Long.parseLong(value)); break;
+                case "resume-buffer": config.resumeBuffer = Math.max(0, Integer.parseInt(value)); break;
+                case "history-cache-mb": config.historyCacheMb = Math.max(1, Long.parseLong(value)); break;
+                default: throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return config;
+    }
+
+    public int getPort() { return port; }
+    public Mode getMode() { return mode; }
+    public int getEventLoops() { return eventLoops; }
+    public int getOutboundCapacity() { return outboundCapacity; }
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() { return overflowPolicy; }
+    public long getBackpressureTimeoutMillis() { return backpressureTimeoutMillis; }
+    // Most frames gathered into one socket write
+    public int getMaxWriteBatch() { return maxWriteBatch; }
+    // How long a blocking writer waits for more frames before writing a batch, 0 writes right away
+    public long getFlushDelayMicros() { return flushDelayMicros; }
+    // Created at startup and never evicted, the first one is where clients land after login
+    public List<String> getPermanentRooms() { return permanentRooms; }
+    // Capacity of a room created by JOIN_ROOM when the client does not ask for one
+    public int getRoomCapacity() { return roomCapacity; }
+    // An empty room is removed after this long
+    public long getRoomIdleEvictSeconds() { return roomIdleEvictSeconds; }
+    public int getRoomShards() { return roomShards; }
+    public int getMaxRooms() { return maxRooms; }
+    // Private messages kept per user who just disconnected, 0 turns the offline buffer off
+    public int getOfflineBufferSize() { return offlineBufferSize; }
+    // How long after a disconnect private messages are still kept for the user
+    public long getOfflineRetentionSeconds() { return offlineRetentionSeconds; }
+    // Port for file data connections, -1 turns file transfer off
+    public int getFilePort() { return filePort == 0 ? port + 1 : filePort; }
+    // Bandwidth cap per file transfer, 0 is unlimited
+    public long getFileRateKbPerSecond() { return fileRateKbPerSecond; }
+    public long getFileMaxMb() { return fileMaxMb; }
+    // How long an offered file waits for both sides to connect
+    public long getFileOfferTimeoutSeconds() { return fileOfferTimeoutSeconds; }
+    // Where files shared in rooms are kept, named by their SHA-256
+    public String getFileStoreDir() { return fileStoreDir; }
+    // Least recently used files are deleted when the store grows past this
+    public long getFileStoreMaxMb() { return fileStoreMaxMb; }
+    // Room messages are kept here, one folder of segment files per room
+    public String getMessageLogDir() { return messageLogDir; }
+    public boolean isMessageLogEnabled() { return !messageLogDir.isEmpty(); }
+    // A room's log rolls over to a new segment file at this size
+    public long getMessageLogSegmentMb() { return messageLogSegmentMb; }
+    // Force each batch to disk before the next one, off means the OS decides when
+    public boolean isMessageLogFsync() { return messageLogFsync; }
+    // Messages waiting for the log writer, more than this are not logged
+    public int getMessageLogQueue() { return messageLogQueue; }
+    // Messages shown to someone joining a room, 0 shows none
+    public int getHistoryReplay() { return historyReplay; }
+    // Memory shared by the recent-history rings of all rooms
+    public long getHistoryCacheMb() { return historyCacheMb; }
+    // Local HTTP port for /metrics, -1 turns it off
+    public int getMetricsPort() { return metricsPort == 0 ? port + 2 : metricsPort; }
+    // DEBUG also shows every broadcast, a limited number of them a second
+    public Log.Level getLogLevel() { return logLevel; }
+    // Room and private messages one connection may send, and what all members of one room may send together
+    public TokenBucket getClientRateLimit() { return new TokenBucket(clientRate, clientBurst); }
+    public TokenBucket getRoomRateLimit() { return new TokenBucket(roomRate, roomBurst); }
+    public TokenBucket.Policy getRateLimitPolicy() { return rateLimitPolicy; }
+    // File with one "name host:port" line per cluster node, see Cluster
+    public String getClusterConfig() { return clusterConfig; }
+    public boolean isClustered() { return !clusterConfig.isEmpty(); }
+    // This node's name in the cluster file
+    public String getNodeName() { return nodeName; }
+    // How long a dropped session keeps its room and name for a resume
+    public long getResumeWindowSeconds() { return resumeWindowSeconds; }
+    // Messages kept in memory per room for resumes, at least the history replay
+    public int getResumeBuffer() { return resumeBuffer; }
+    // Join and leave notices of a room within this window go out as one digest
+    public long getPresenceWindowMillis() { return presenceWindowMillis; }
+    // Rooms with more members than this get no join and leave notices
+    public int getPresenceMaxRoom() { return presenceMaxRoom; }
+    // A logged in client that asked for heartbeats with #HEARTBEAT and has sent nothing for this long gets a PING
+    public long getHeartbeatSeconds() { return heartbeatSeconds; }
+    // Such a client that sends nothing, not even a PONG, for this long is disconnected. Older clients are not checked.
+    public long getReadTimeoutSeconds() { return readTimeoutSeconds; }
+    // A client that takes none of its queued frames for this long is disconnected
+    public long getWriteTimeoutSeconds() { return writeTimeoutSeconds; }
+    public boolean isIdleCheckEnabled() { return heartbeatSeconds > 0 || readTimeoutSeconds > 0 || writeTimeoutSeconds > 0; }
+
+    public OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(outboundCapacity, overflowPolicy, backpressureTimeoutMillis);
+    }
+}
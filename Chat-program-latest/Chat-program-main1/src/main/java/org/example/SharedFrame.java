@@ -0,0 +1,91 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A line encoded once and shared by every recipient of a broadcast.
+ * The text bytes are the same as writing the line with println, so a
+ * Message.toLine() frame looks exactly like it did before.
+ * Each wire format is encoded the first time a recipient using it asks,
+ * so a room with text and binary clients costs at most two encodings.
+ * Each recipient gets its own read-only duplicate, so positions are
+ * independent while the bytes themselves are never copied.
+ * Frames are kept in the HistoryCache and replayed from other threads,
+ * so the encodings are published through an atomic array.
+ *
+ * A room message also has the room's sequence number. Clients with a
+ * resumable session get it in front of the line ("#SEQ 42 alice: hi"),
+ * that variant is encoded once as well, the first time it is asked for.
+ */
+public final class SharedFrame {
+    // Below this many recipients a direct buffer costs more to allocate than it saves
+    public static final int DIRECT_MIN_RECIPIENTS = 4;
+    public static final String SEQ_PREFIX = "#SEQ ";
+
+    private static final WireFormat[] FORMATS = WireFormat.values();
+
+    private final String line;
+    private final Message message;
+    private final boolean direct;
+    // 0 for everything that is not a numbered room message
+    private final long seq;
+    // Per format the plain encoding, then the numbered one
+    private final AtomicReferenceArray<ByteBuffer> encoded = new AtomicReferenceArray<>(FORMATS.length * 2);
+
+    private SharedFrame(String line, Message message, boolean direct, long seq) {
+        this.line = line;
+        this.message = message;
+        this.direct = direct;
+        this.seq = seq;
+    }
+
+    public static SharedFrame ofLine(String line, boolean direct) {
+        return new SharedFrame(line, null, direct, 0);
+    }
+
+    public static SharedFrame ofLine(String line, boolean direct, long seq) {
+        return new SharedFrame(line, null, direct, seq);
+    }
+
+    public static SharedFrame of(Message message, boolean direct) {
+        return new SharedFrame(null, message, direct, 0);
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    // Fresh position and limit for one recipient, same bytes underneath
+    public ByteBuffer view(WireFormat format) {
+        return encoded(format, false).duplicate();
+    }
+
+    // numbered puts the sequence number in front, if the frame has one
+    public ByteBuffer view(WireFormat format, boolean numbered) {
+        return encoded(format, numbered).duplicate();
+    }
+
+    public int size(WireFormat format, boolean numbered) {
+        return encoded(format, numbered).remaining();
+    }
+
+    private ByteBuffer encoded(WireFormat format, boolean numbered) {
+        numbered = numbered && seq > 0 && message == null;
+        int index = format.ordinal() * 2 + (numbered ? 1 : 0);
+        ByteBuffer buf = encoded.get(index);
+        if (buf == null) {
+            // Two threads may both encode, either result is the same bytes
+            ByteBuffer heap = message != null ? format.encode(message)
+                    : format.encodeLine(numbered ? SEQ_PREFIX + seq + " " + line : line);
+            if (direct) {
+                buf = ByteBuffer.allocateDirect(heap.remaining()).put(heap).flip();
+            } else {
+                buf = heap;
+            }
+            buf = buf.asReadOnlyBuffer();
+            encoded.set(index, buf);
+        }
+        return buf;
+    }
+}
@@ -0,0 +1,145 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Blocking transport used by the thread and virtual-thread server modes.
+ * Works directly on a blocking SocketChannel. writeFrame() only queues the frame,
+ * runWriter() is the single thread that ever writes to the channel, so no
+ * lock is held around socket writes and a virtual thread blocked in a write
+ * parks instead of pinning its carrier thread.
+ */
+public class SocketConnection implements ClientConnection {
+    private static final int READ_BUFFER_SIZE = 4 * 1024;
+    private static final Log.Limit SLOW_CLIENT_LOG = Log.limit(Log.Level.WARN, 20);
+    // Queued by close(), tells the writer to close the channel once everything before it is sent
+    private static final ByteBuffer CLOSE_MARKER = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final int port;
+    private final OutboundQueue outbound;
+    private final GatheringWriter gather;
+    private final long flushDelayNanos;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final AtomicBoolean closing = new AtomicBoolean();
+    private volatile Thread writerThread;
+
+    public SocketConnection(SocketChannel channel, ServerConfig config) {
+        this.channel = channel;
+        this.port = channel.socket().getPort();
+        this.outbound = config.newOutboundQueue();
+        this.gather = new GatheringWriter(config.getMaxWriteBatch());
+        this.flushDelayNanos = config.getFlushDelayMicros() * 1000;
+    }
+
+    // Blocks for the next chunk and hands it to the handler. Returns false at end of stream.
+    public boolean read(ClientHandler handler) throws IOException {
+        readBuffer.clear();
+        if (channel.read(readBuffer) < 0) {
+            return false;
+        }
+        readBuffer.flip();
+        long pause = handler.onBytes(readBuffer);
+        // Rate limited: nothing more is read meanwhile, so the sender's TCP window fills up
+        while (pause > 0) {
+            LockSupport.parkNanos(pause);
+            pause = handler.continueBytes(readBuffer);
+        }
+        return true;
+    }
+
+    @Override
+    public void writeFrame(ByteBuffer frame) {
+        enqueue(frame);
+    }
+
+    private void enqueue(ByteBuffer frame) {
+        if (closing.get()) {
+            return;
+        }
+        if (!outbound.offer(frame, true)) {
+            if (SLOW_CLIENT_LOG.allow()) {
+                SLOW_CLIENT_LOG.log("Disconnecting slow client on port {} ({} frames queued)", port, outbound.depth());
+            }
+            closeChannel();
+        }
+    }
+
+    /**
+     * Drains the outbound queue until the connection closes, run as its own task.
+     * Waits for one frame, then takes whatever else is already queued (or arrives
+     * within the flush delay) and sends it all with one gathering write.
+     */
+    public void runWriter() {
+        writerThread = Thread.currentThread();
+        try {
+            boolean closeRequested = false;
+            while (!closeRequested && channel.isOpen()) {
+                ByteBuffer frame = outbound.take();
+                long deadline = System.nanoTime() + flushDelayNanos;
+                while (frame != null) {
+                    if (frame == CLOSE_MARKER) {
+                        closeRequested = true;
+                        break;
+                    }
+                    gather.add(frame);
+                    if (gather.isFull()) {
+                        break;
+                    }
+                    frame = flushDelayNanos == 0 ? outbound.poll() : outbound.poll(deadline - System.nanoTime());
+                }
+                while (gather.hasPending()) {
+                    gather.writeTo(channel, outbound);
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            // Channel closed or writer stopped
+        } finally {
+            closeChannel();
+        }
+    }
+
+    // Frames queued before close() are still sent, then the channel is closed
+    @Override
+    public void close() {
+        if (!closing.compareAndSet(false, true)) {
+            return;
+        }
+        if (writerThread == null || !outbound.offerControl(CLOSE_MARKER)) {
+            closeChannel();
+        }
+    }
+
+    @Override
+    public void abort() {
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        closing.set(true);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Handle quietly
+        }
+        outbound.clear();
+        Thread writer = writerThread;
+        if (writer != null && writer != Thread.currentThread()) {
+            writer.interrupt();
+        }
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+}
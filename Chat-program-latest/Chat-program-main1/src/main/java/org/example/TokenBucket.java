@@ -0,0 +1,88 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Rate and burst of a token bucket, shared by every connection or every
+ * room it applies to. The state of one bucket is a single long kept by its
+ * owner (a ClientHandler or a Room) and updated with a CAS, so there are no
+ * locks and no bucket objects: the long is the time at which the bucket
+ * would be full again. Taking a token moves that time one interval ahead,
+ * and a token is there as long as the time is at most burst intervals away.
+ *
+ * Callers pass in the time themselves, so a handler can read the clock once
+ * for a whole batch of lines.
+ */
+public final class TokenBucket {
+
+    public enum Policy {
+        // Stop reading from the sender until a token is back, TCP slows them down
+        PAUSE,
+        // Drop the message and tell the sender
+        DROP
+    }
+
+    private final double perSecond;
+    private final int burst;
+    private final long intervalNanos;
+    // How far ahead of now the full time may be while there is still a token
+    private final long toleranceNanos;
+
+    // perSecond 0 means no limit
+    public TokenBucket(double perSecond, int burst) {
+        this.perSecond = perSecond;
+        this.burst = Math.max(1, burst);
+        this.intervalNanos = perSecond > 0 ? Math.max(1, (long) (1_000_000_000L / perSecond)) : 0;
+        this.toleranceNanos = intervalNanos * (this.burst - 1);
+    }
+
+    public boolean isLimited() {
+        return intervalNanos > 0;
+    }
+
+    public double getPerSecond() {
+        return perSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Takes a token if there is one and returns 0, otherwise takes nothing
+     * and returns how many nanoseconds until there is one.
+     */
+    public <T> long tryTake(AtomicLongFieldUpdater<T> state, T owner, long now) {
+        if (intervalNanos == 0) {
+            return 0;
+        }
+        while (true) {
+            long full = state.get(owner);
+            long from = Math.max(full, now);
+            long ahead = from - now;
+            if (ahead > toleranceNanos) {
+                return ahead - toleranceNanos;
+            }
+            if (state.compareAndSet(owner, full, from + intervalNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Always takes a token, going into debt if the bucket is empty, and
+     * returns how many nanoseconds the caller should wait before the next one.
+     */
+    public <T> long take(AtomicLongFieldUpdater<T> state, T owner, long now) {
+        if (intervalNanos == 0) {
+            return 0;
+        }
+        while (true) {
+            long full = state.get(owner);
+            long next = Math.max(full, now) + intervalNanos;
+            if (state.compareAndSet(owner, full, next)) {
+                return Math.max(0, next - now - toleranceNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * How outbound lines and messages are encoded for one connection.
+ * TEXT is the original newline protocol, BINARY the length-prefixed
+ * frames from BinaryCodec, picked by the handshake when the client connects.
+ */
+public enum WireFormat {
+    TEXT {
+        @Override
+        public ByteBuffer encodeLine(String line) {
+            return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public ByteBuffer encodeLines(List<String> lines) {
+            StringBuilder sb = new StringBuilder();
+            for (String line : lines) {
+                sb.append(line).append('\n');
+            }
+            return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public ByteBuffer encode(Message message) {
+            return encodeLine(message.toLine());
+        }
+    },
+    BINARY {
+        @Override
+        public ByteBuffer encodeLine(String line) {
+            return BinaryCodec.encodeNotice(line);
+        }
+
+        @Override
+        public ByteBuffer encodeLines(List<String> lines) {
+            return BinaryCodec.encodeNotices(lines);
+        }
+
+        @Override
+        public ByteBuffer encode(Message message) {
+            return BinaryCodec.encode(message);
+        }
+    };
+
+    // A server line, what println would have sent
+    public abstract ByteBuffer encodeLine(String line);
+
+    // All lines in one buffer, so they reach the socket in a single write
+    public abstract ByteBuffer encodeLines(List<String> lines);
+
+    public abstract ByteBuffer encode(Message message);
+}
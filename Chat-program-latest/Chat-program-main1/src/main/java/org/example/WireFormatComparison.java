@@ -0,0 +1,118 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compares the text line format (Message.toLine()) with the binary frames
+ * of BinaryCodec: bytes on the wire per message, and encode and decode
+ * throughput for the same message at a few payload sizes.
+ *
+ * Decoding uses what the server runs: MessageView for a line and
+ * BinaryFrameView for a frame, both reading the payload out as a String.
+ *
+ * Eksempel:
+ * java org.example.WireFormatComparison 16,128,1024,8192 2000000
+ */
+public class WireFormatComparison {
+    private static final int ROUNDS = 5;
+
+    // Keeps the JIT from dropping the work being measured
+    private static long sink;
+
+    public static void main(String[] args) {
+        int[] payloadSizes = args.length > 0
+                ? Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray()
+                : new int[]{16, 128, 1024, 8192};
+        long budget = args.length > 1 ? Long.parseLong(args[1]) : 2_000_000;
+
+        System.out.printf("%-8s %-7s %10s %14s %14s %16s%n",
+                "payload", "format", "bytes/msg", "encode ns/op", "decode ns/op", "decode msgs/s");
+        for (int size : payloadSizes) {
+            Message message = Message.ofNow("c52344", Message.MessageType.TEXT, "x".repeat(size));
+            // Same amount of data per size, so the large payloads do not take forever
+            int iterations = (int) Math.max(10_000, budget * 16 / Math.max(16, size));
+
+            byte[] line = (message.toLine() + "\n").getBytes(StandardCharsets.UTF_8);
+            byte[] frame = toArray(BinaryCodec.encode(message));
+
+            report(size, "text", line.length,
+                    measure(iterations, () -> sink += (message.toLine() + "\n").getBytes(StandardCharsets.UTF_8).length),
+                    measure(iterations, new TextDecode(line)));
+            report(size, "binary", frame.length,
+                    measure(iterations, () -> sink += BinaryCodec.encode(message).remaining()),
+                    measure(iterations, new BinaryDecode(frame)));
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void report(int size, String format, int bytes, double encodeNanos, double decodeNanos) {
+        System.out.printf("%-8d %-7s %10d %14.1f %14.1f %16.0f%n",
+                size, format, bytes, encodeNanos, decodeNanos, 1e9 / decodeNanos);
+    }
+
+    // Best of a few rounds, after one round of warm-up
+    private static double measure(int iterations, Runnable op) {
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                op.run();
+            }
+            double nanos = (System.nanoTime() - start) / (double) iterations;
+            if (round > 0) {
+                best = Math.min(best, nanos);
+            }
+        }
+        return best;
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static final class TextDecode implements Runnable {
+        private final MessageView view = new MessageView();
+        private final byte[] line;
+
+        TextDecode(byte[] line) {
+            this.line = line;
+        }
+
+        @Override
+        public void run() {
+            // Without the '\n', like LineDecoder hands it over
+            sink += view.parse(line, 0, line.length - 1).firstPayload().length();
+        }
+    }
+
+    private static final class BinaryDecode implements Runnable {
+        private final BinaryFrameView view = new BinaryFrameView();
+        private final byte[] frame;
+        private final int prefix;
+
+        BinaryDecode(byte[] frame) {
+            this.frame = frame;
+            this.prefix = prefixLength(frame);
+        }
+
+        @Override
+        public void run() {
+            // Without the length prefix, like BinaryFrameDecoder hands it over
+            sink += view.parse(frame, prefix, frame.length - prefix).firstPayload().length();
+        }
+
+        private static int prefixLength(byte[] frame) {
+            int i = 0;
+            while ((frame[i] & 0x80) != 0) {
+                i++;
+            }
+            return i + 1;
+        }
+    }
+}